@@ -0,0 +1,389 @@
+package es.uned.nlp.rbu;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ *
+ * <p>This source implements the metric RBU presented in the paper:<br><br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; An Axiomatic Analysis of Diversity Evaluation Metrics: Introducing the Rank-Biased Utility Metric.<br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; Enrique Amigó, Damiano Spina, Jorge Carrillo-de-Albornoz. In proceedings of SIGIR'18.</p>
+ *
+ * <p>Please, if you use this resource please cite it.</p>
+ *
+ * <p>This package is also included in the Evaluation Platform EvALL (www.evall.uned.es), along with extended features: pdf and latex reports,
+ * other diversity metrics, statistical significance test, etc.</p>
+ *
+ * <p>Approximate evaluation over a random sample of the test cases. The test cases are grouped in strata by their number of items in the gold
+ * standard and sampled proportionally to the size of each stratum. The mean of all the test cases is estimated with the stratified estimator
+ * (the mean of each stratum weighted by its size), whose variance is the weighted sum of the variances of the means of the strata, with the
+ * finite population correction. The sample doubles until the confidence interval of the mean is narrower than the target width, or until all
+ * the test cases are evaluated. Optionally, a reference system output is evaluated on the same test cases and the evaluation stops as soon as
+ * the output is clearly worse.</p>
+ *
+ * <p>The intervals are checked after each doubling of the sample. To keep the confidence level over all the checks, the level of each one is
+ * corrected with Bonferroni: with K checks before the whole population, each interval has a confidence of 1-(1-confidence)/K. The intervals
+ * use the normal approximation.</p>
+ *
+ * <p>A test case with a NaN result (an item judged in an aspect without relevant items) makes the mean NaN. The evaluation stops at the first
+ * check with one, and the test cases with NaN results are reported.</p>
+ *
+ * @author Jorge Carrillo-de-Albornoz
+ *
+ *  Copyright (c) 20018 - Permission is granted for use and modification of this file for research, non-commercial purposes.
+ */
+
+public class ApproximateEvaluation
+{
+	/**
+	 * Reason why the sample stopped growing.
+	 * */
+	public enum Stop
+	{
+		/** The confidence interval is narrower than the target width. */
+		CONVERGED,
+		/** The output is worse than the reference output with the given confidence. */
+		WORSE_THAN_REFERENCE,
+		/** All the test cases have been evaluated, the result is exact. */
+		ALL_TEST_CASES,
+		/** A sampled test case has a NaN result, so the mean is NaN. */
+		NAN_RESULT
+	}
+
+	private RBUEvaluator evaluator;
+	private double targetWidth;
+	private double confidence = 0.95d;
+	private int numStrata = 4;
+	private int initialSampleSize = 10;
+	private long seed = 0L;
+
+	/**
+	 * Stratum of each test case and number of test cases of each stratum.
+	 * */
+	private HashMap<String, Integer> stratumOfTestCase = new HashMap<String, Integer>();
+	private int[] stratumSizes = new int[0];
+
+	private EvallResult result = null;
+	private EvallResult differences = null;
+	private double confidenceIntervalWidth = Double.POSITIVE_INFINITY;
+	private Stop stop = null;
+	private List<String> nanTestCases = new ArrayList<String>();
+
+	/**
+	 * @param evaluator Evaluator with the gold standard and the parameters of RBU
+	 * @param targetWidth Target width of the confidence interval of the mean
+	 */
+	public ApproximateEvaluation(RBUEvaluator evaluator, double targetWidth)
+	{
+		this.evaluator = evaluator;
+		this.targetWidth = targetWidth;
+	}
+
+	/**
+	 * Method that evaluates a system output on a growing sample of test cases.
+	 *
+	 * @param output System output DiversificationFormat object
+	 * @param reference Reference system output DiversificationFormat object, or null to not stop early when the output is worse
+	 * @return The results of the sampled test cases, with the stratified estimate of the mean as aggregated result (the exact mean if all
+	 * the test cases are evaluated)
+	 */
+	public EvallResult evaluate(DiversificationFormat output, DiversificationFormat reference)
+	{
+		List<String> order = getSampleOrder();
+		int populationSize = order.size();
+		this.result = new EvallResult();
+		this.differences = reference!=null ? new EvallResult() : null;
+		this.confidenceIntervalWidth = Double.POSITIVE_INFINITY;
+		this.stop = null;
+		this.nanTestCases = new ArrayList<String>();
+
+		int sampleSize = Math.min(populationSize, Math.max(2, this.initialSampleSize));
+		double z = getNormalQuantile(1.0d - (1.0d-this.confidence)/(2*getNumberOfChecks(sampleSize, populationSize)));
+		int evaluated = 0;
+		while(this.stop==null)
+		{
+			/**
+			 * Every prefix of the order is a proportional stratified sample, so growing the sample only evaluates new test cases.
+			 * */
+			for(;evaluated<sampleSize;evaluated++)
+			{
+				String testCase = order.get(evaluated);
+				Double value = this.evaluator.evaluateTestCase(testCase, output.getRankingOfTopics().get(testCase));
+				this.result.getResults().put(testCase, value);
+				boolean nan = Double.isNaN(value);
+				if(reference!=null)
+				{
+					Double valueReference = this.evaluator.evaluateTestCase(testCase, reference.getRankingOfTopics().get(testCase));
+					this.differences.getResults().put(testCase, value-valueReference);
+					nan |= Double.isNaN(valueReference);
+				}
+				if(nan)
+				{
+					this.nanTestCases.add(testCase);
+				}
+			}
+
+			this.confidenceIntervalWidth = 2*z*Math.sqrt(getStratifiedEstimate(this.result)[1]);
+			if(!this.nanTestCases.isEmpty())
+			{
+				this.stop = Stop.NAN_RESULT;
+			}
+			else if(evaluated>=populationSize)
+			{
+				this.stop = Stop.ALL_TEST_CASES;
+			}
+			else if(this.confidenceIntervalWidth<=this.targetWidth)
+			{
+				this.stop = Stop.CONVERGED;
+			}
+			else if(reference!=null && isWorseThanReference(z))
+			{
+				this.stop = Stop.WORSE_THAN_REFERENCE;
+			}
+			sampleSize = Math.min(populationSize, 2*sampleSize);
+		}
+		setAggregatedResult(this.result);
+		if(this.differences!=null)
+		{
+			setAggregatedResult(this.differences);
+		}
+		return this.result;
+	}
+
+	/**
+	 * The exact mean when all the test cases are evaluated or some result is NaN, the stratified estimate otherwise.
+	 * */
+	private void setAggregatedResult(EvallResult values)
+	{
+		if(this.stop==Stop.ALL_TEST_CASES || this.stop==Stop.NAN_RESULT)
+		{
+			values.normalizeResult();
+		}
+		else
+		{
+			values.setAggregatedResult(getStratifiedEstimate(values)[0]);
+		}
+	}
+
+	/**
+	 * The output is worse when the upper bound of the confidence interval of the mean difference with the reference is below 0.
+	 * */
+	private boolean isWorseThanReference(double z)
+	{
+		double[] estimate = getStratifiedEstimate(this.differences);
+		return estimate[0]+z*Math.sqrt(estimate[1])<0.0d;
+	}
+
+	/**
+	 * @param values Results of the sampled test cases
+	 * @return The stratified estimate of the mean of all the test cases and its variance. The variance is infinite if a stratum not fully
+	 * evaluated has less than 2 results.
+	 */
+	private double[] getStratifiedEstimate(EvallResult values)
+	{
+		int numStrata = this.stratumSizes.length;
+		int[] count = new int[numStrata];
+		double[] mean = new double[numStrata];
+		double[] sumSquares = new double[numStrata];
+		int populationSize = 0;
+		for(int h=0;h<numStrata;h++)
+		{
+			populationSize += this.stratumSizes[h];
+		}
+		for (Map.Entry<String, Double> entry : values.getResults().entrySet())
+		{
+			if(entry.getValue()!=null)
+			{
+				int h = this.stratumOfTestCase.get(entry.getKey());
+				double value = entry.getValue();
+				count[h]++;
+				double delta = value-mean[h];
+				mean[h] += delta/count[h];
+				sumSquares[h] += delta*(value-mean[h]);
+			}
+		}
+
+		double estimate = 0.0d;
+		double variance = 0.0d;
+		for(int h=0;h<numStrata;h++)
+		{
+			if(this.stratumSizes[h]==0)
+			{
+				continue;
+			}
+			if(count[h]==0)
+			{
+				return new double[] {Double.NaN, Double.POSITIVE_INFINITY};
+			}
+			double weight = (double) this.stratumSizes[h]/populationSize;
+			estimate += weight*mean[h];
+			if(count[h]<this.stratumSizes[h])
+			{
+				if(count[h]<2)
+				{
+					variance = Double.POSITIVE_INFINITY;
+				}
+				else
+				{
+					double correction = 1.0d - (double) count[h]/this.stratumSizes[h];
+					variance += weight*weight*correction*(sumSquares[h]/(count[h]-1))/count[h];
+				}
+			}
+		}
+		return new double[] {estimate, variance};
+	}
+
+	/**
+	 * @return The number of checks of the intervals before all the test cases are evaluated, at least 1
+	 */
+	private static int getNumberOfChecks(int sampleSize, int populationSize)
+	{
+		int checks = 0;
+		while(sampleSize<populationSize)
+		{
+			checks++;
+			sampleSize = Math.min(populationSize, 2*sampleSize);
+		}
+		return Math.max(1, checks);
+	}
+
+	/**
+	 * Quantile of the standard normal distribution, with the rational approximation of P. J. Acklam (relative error below 1.2e-9).
+	 *
+	 * @param p Probability, between 0 and 1
+	 * @return The value z such that P(Z&lt;=z) = p
+	 */
+	private static double getNormalQuantile(double p)
+	{
+		double[] a = {-3.969683028665376e+01, 2.209460984245205e+02, -2.759285104469687e+02, 1.383577518672690e+02, -3.066479806614716e+01, 2.506628277459239e+00};
+		double[] b = {-5.447609879822406e+01, 1.615858368580409e+02, -1.556989798598866e+02, 6.680131188771972e+01, -1.328068155288572e+01};
+		double[] c = {-7.784894002430293e-03, -3.223964580411365e-01, -2.400758277161838e+00, -2.549732539343734e+00, 4.374664141464968e+00, 2.938163982698783e+00};
+		double[] d = {7.784695709041462e-03, 3.224671290700398e-01, 2.445134137142996e+00, 3.754408661907416e+00};
+		double low = 0.02425d;
+		if(p<low || p>1.0d-low)
+		{
+			double q = Math.sqrt(-2*Math.log(p<low ? p : 1.0d-p));
+			double x = (((((c[0]*q+c[1])*q+c[2])*q+c[3])*q+c[4])*q+c[5]) / ((((d[0]*q+d[1])*q+d[2])*q+d[3])*q+1);
+			return p<low ? x : -x;
+		}
+		double q = p-0.5d;
+		double r = q*q;
+		return (((((a[0]*r+a[1])*r+a[2])*r+a[3])*r+a[4])*r+a[5])*q / (((((b[0]*r+b[1])*r+b[2])*r+b[3])*r+b[4])*r+1);
+	}
+
+	/**
+	 * @return The test cases of the gold standard in the order they are sampled.
+	 */
+	private List<String> getSampleOrder()
+	{
+		/**
+		 * Strata of consecutive test cases sorted by their number of items.
+		 * */
+		List<String> testCases = new ArrayList<String>(this.evaluator.getTestCases());
+		Collections.sort(testCases, Comparator.comparingInt((String testCase) -> this.evaluator.getNumberOfItems(testCase)).thenComparing(Comparator.naturalOrder()));
+		int numStrata = Math.max(1, Math.min(this.numStrata, testCases.size()));
+		Random random = new Random(this.seed);
+		List<List<String>> strata = new ArrayList<List<String>>();
+		this.stratumOfTestCase = new HashMap<String, Integer>();
+		this.stratumSizes = new int[numStrata];
+		for(int h=0;h<numStrata;h++)
+		{
+			List<String> stratum = new ArrayList<String>(testCases.subList(h*testCases.size()/numStrata, (h+1)*testCases.size()/numStrata));
+			Collections.shuffle(stratum, random);
+			strata.add(stratum);
+			this.stratumSizes[h] = stratum.size();
+			for (String testCase : stratum)
+			{
+				this.stratumOfTestCase.put(testCase, h);
+			}
+		}
+
+		/**
+		 * Each position takes the next test case of the stratum with the largest deficit with respect to its proportional share.
+		 * */
+		List<String> order = new ArrayList<String>(testCases.size());
+		int[] taken = new int[numStrata];
+		while(order.size()<testCases.size())
+		{
+			int best = -1;
+			double bestDeficit = Double.NEGATIVE_INFINITY;
+			for(int h=0;h<numStrata;h++)
+			{
+				if(taken[h]<strata.get(h).size())
+				{
+					double deficit = (order.size()+1)*(double)strata.get(h).size()/testCases.size() - taken[h];
+					if(deficit>bestDeficit)
+					{
+						bestDeficit = deficit;
+						best = h;
+					}
+				}
+			}
+			order.add(strata.get(best).get(taken[best]));
+			taken[best]++;
+		}
+		return order;
+	}
+
+	public EvallResult getResult()
+	{
+		return result;
+	}
+
+	/**
+	 * @return The differences with the reference output in each sampled test case, or null if there is no reference.
+	 */
+	public EvallResult getDifferences()
+	{
+		return differences;
+	}
+
+	/**
+	 * @return The width of the confidence interval of the mean at the last check, with the Bonferroni correction
+	 */
+	public double getConfidenceIntervalWidth()
+	{
+		return confidenceIntervalWidth;
+	}
+
+	public Stop getStop()
+	{
+		return stop;
+	}
+
+	/**
+	 * @return The sampled test cases with a NaN result, in the output or in the reference output
+	 */
+	public List<String> getNanTestCases()
+	{
+		return nanTestCases;
+	}
+
+	/**
+	 * @param confidence Confidence level over all the checks of the interval, 0.95 by default
+	 */
+	public void setConfidence(double confidence)
+	{
+		this.confidence = confidence;
+	}
+
+	public void setNumStrata(int numStrata)
+	{
+		this.numStrata = numStrata;
+	}
+
+	public void setInitialSampleSize(int initialSampleSize)
+	{
+		this.initialSampleSize = initialSampleSize;
+	}
+
+	public void setSeed(long seed)
+	{
+		this.seed = seed;
+	}
+}
@@ -1,5 +1,6 @@
 package es.uned.nlp.rbu;
 
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -9,13 +10,18 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 
 import com.csvreader.CsvReader;
 import com.csvreader.CsvWriter;
@@ -58,6 +64,16 @@ public class DiversificationFormat
 	private String pathFile;
 	private boolean stop= false;
 	
+	/**
+	 * Optional filter of test cases. Rows of test cases not accepted are skipped while parsing, so they are never loaded.
+	 * */
+	private Predicate<String> topicFilter = null;
+	
+	/**
+	 * Maximum number of items of the ranking of each test case in the system output. The rest of rows of the test case are skipped.
+	 * */
+	private int maxRankingDepth = Integer.MAX_VALUE;
+	
 	/**
 	 * Contains the list of data for different test cases. DiversificatioItem includes the relevance value and its aspect.  
 	 * 				Topic			id				aspect,relevance
@@ -74,6 +90,11 @@ public class DiversificationFormat
 	 * Ranking of the system output according to the rows. 
 	 * */
 	private HashMap<String, ArrayList<String>> rankingOfTestCases = new HashMap<String, ArrayList<String>>();	
+	
+	/**
+	 * Line of the first row of each test case in the file. It is only filled by parseFile, where the lines are those of the whole file.
+	 * */
+	private HashMap<String, Long> firstLineOfTestCases = new HashMap<String, Long>();
 
 	
 	public boolean isGold() 
@@ -91,6 +112,33 @@ public class DiversificationFormat
 		return stop;
 	}
 
+	public Predicate<String> getTopicFilter()
+	{
+		return topicFilter;
+	}
+
+	/**
+	 * @param topicFilter Filter of the test cases to load, or null to load all of them. It must be set before parsing the file.
+	 */
+	public void setTopicFilter(Predicate<String> topicFilter)
+	{
+		this.topicFilter = topicFilter;
+	}
+
+	public int getMaxRankingDepth()
+	{
+		return maxRankingDepth;
+	}
+
+	/**
+	 * @param maxRankingDepth Maximum number of items of the ranking of each test case in the system output, for instance 
+	 * RBUEvaluator.getMaxRankingDepth. It must be set before parsing the file, and it does not apply to the gold standard.
+	 */
+	public void setMaxRankingDepth(int maxRankingDepth)
+	{
+		this.maxRankingDepth = maxRankingDepth;
+	}
+
 	public void parseFile(boolean isGold, String pathFile)
 	{
 		this.isGold = isGold;
@@ -102,7 +150,7 @@ public class DiversificationFormat
 			if(streamOutput!=null)
 			{		
 				CsvReader reader = new CsvReader(new InputStreamReader(streamOutput, Charset.forName(StandardCharsets.UTF_8.displayName())), '\t');			
-				parserInternal(reader); 
+				parserInternal(reader, pathFile, true); 
 				reader.close();
 			}			
 		} 
@@ -112,10 +160,88 @@ public class DiversificationFormat
 		}			
 	}
 
+	/**
+	 * Method that adds the rows of a file of judgments to a gold standard already parsed. The rows are validated with the same rules as when
+	 * parsing the gold standard, and the rows with errors are ignored.
+	 * 
+	 * @param pathFile Path of the file with the new judgments, in the gold standard format
+	 * @return The test cases with new judgments
+	 */
+	public Set<String> appendJudgments(String pathFile)
+	{
+		if(!this.isGold())
+		{
+			System.out.println("Judgments can only be added to a gold standard: " + pathFile);
+			return new HashSet<String>();
+		}
+		try 
+		{
+			CsvReader reader = new CsvReader(new InputStreamReader(new FileInputStream(pathFile), Charset.forName(StandardCharsets.UTF_8.displayName())), '\t');			
+			Set<String> updated = parserInternal(reader, pathFile, false); 
+			reader.close();
+			return updated;
+		} 
+		catch (FileNotFoundException e1)
+		{
+			System.out.println("File not found: " + pathFile);
+			return new HashSet<String>();
+		}			
+	}
 	
-	private void parserInternal(CsvReader reader) 
+	/**
+	 * Method that parses only the rows of some test cases. The byte ranges of each test case are read from a TopicOffsetIndex, which is 
+	 * built the first time. Line numbers in the messages are relative to the rows read. Test cases not present in the file are reported 
+	 * and skipped.
+	 * 
+	 * @param isGold True if the file is a gold standard
+	 * @param pathFile Path of the file
+	 * @param testCases Test cases to parse
+	 */
+	public void parseTopics(boolean isGold, String pathFile, Collection<String> testCases)
 	{
-		System.out.println("Parsing file " + this.pathFile);
+		this.isGold = isGold;
+		this.pathFile = pathFile;
+
+		try 
+		{
+			TopicOffsetIndex index = TopicOffsetIndex.load(pathFile);
+			for (String testCase : new LinkedHashSet<String>(testCases))
+			{
+				if(index.getRanges(testCase)==null)
+				{
+					System.out.println("The test case " + testCase + " is not present in the file " + pathFile);
+				}
+			}
+			byte[] rows = index.read(pathFile, testCases);
+			if(rows.length==0)
+			{
+				return;
+			}
+			CsvReader reader = new CsvReader(new InputStreamReader(new ByteArrayInputStream(rows), Charset.forName(StandardCharsets.UTF_8.displayName())), '\t');			
+			parserInternal(reader, pathFile, false); 
+			reader.close();
+		} 
+		catch (FileNotFoundException e1)
+		{
+			System.out.println("File not found: " + pathFile);
+		}			
+		catch (IOException e)
+		{
+			System.out.println("IO error: " + e.getMessage());
+			stop=true;
+		}
+	}
+		
+	/**
+	 * @param reader Reader of the rows
+	 * @param source Name of the file, for the messages
+	 * @param wholeFile True if the reader starts at the first line of the file, so the lines of the first row of each test case are kept
+	 * @return The test cases with new rows
+	 */
+	private HashSet<String> parserInternal(CsvReader reader, String source, boolean wholeFile) 
+	{
+		System.out.println("Parsing file " + source);
+		HashSet<String> updated = new HashSet<String>();
 		reader.setUseTextQualifier(true);
         reader.setTextQualifier('\"');
         long inLine = 0;
@@ -148,6 +274,14 @@ public class DiversificationFormat
             	}            	
             	
             	String testCase = record[0];
+            	if(topicFilter!=null && !topicFilter.test(testCase))
+            	{
+            		continue;
+            	}
+            	if(!this.isGold() && rankingOfTestCases.get(testCase)!=null && rankingOfTestCases.get(testCase).size()>=maxRankingDepth)
+            	{
+            		continue;
+            	}
             	String id = record[1];
             	String value = null;
             	String aspect = null;
@@ -244,6 +378,7 @@ public class DiversificationFormat
             	/**
             	 * Everything is correct and we update the tables.
             	 * */
+            	updated.add(testCase);
 
             	if (tableOfTestCase.get(testCase)!=null)
             	{
@@ -305,6 +440,10 @@ public class DiversificationFormat
             		ArrayList<String> ranking = new ArrayList<String>();
             		ranking.add(id);
             		rankingOfTestCases.put(testCase, ranking);
+            		if(wholeFile)
+            		{
+            			firstLineOfTestCases.put(testCase, inLine);
+            		}
             		
             		if(this.isGold())
             		{
@@ -338,6 +477,7 @@ public class DiversificationFormat
         	System.out.println("IO error: input file not well formed.");
         	stop=true;
         }
+        return updated;
 	}
 	
 	public boolean isNumeric(String str)
@@ -371,6 +511,35 @@ public class DiversificationFormat
 		return tableOfAspects;
 	}
 	
+	/**
+	 * @return The line of the first row of each test case, only for files read with parseFile
+	 */
+	public HashMap<String, Long> getFirstLineOfTopics() 
+	{
+		return firstLineOfTestCases;
+	}
+	
+	/**
+	 * Method that gives the order of the tables of the parser from the line of the first row of each test case, for instance to merge the
+	 * test cases of several partial parses of the same file. The parser adds each test case to a HashMap when it reads its first row, and 
+	 * the iteration order of a HashMap only depends on the sequence of keys added to it. Adding the same test cases in order of line to a 
+	 * new HashMap gives the same order as parsing the whole file.
+	 * 
+	 * @param firstLines Line of the first row of each test case in the file, see getFirstLineOfTopics
+	 * @return The test cases in the order of getTableOfTopics after parsing the whole file
+	 */
+	public static List<String> getTopicsInParserOrder(Map<String, Long> firstLines) 
+	{
+		List<String> topics = new ArrayList<String>(firstLines.keySet());
+		topics.sort(Comparator.comparing((String topic) -> firstLines.get(topic)));
+		HashMap<String, Long> table = new HashMap<String, Long>();
+		for (String topic : topics)
+		{
+			table.put(topic, firstLines.get(topic));
+		}
+		return new ArrayList<String>(table.keySet());
+	}
+	
 	/**
 	 * @param testCase Test case to analyze
 	 * @param aspect Aspect to analyze
@@ -7,8 +7,10 @@ import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 
 import com.csvreader.CsvWriter;
 
@@ -33,6 +35,28 @@ import com.csvreader.CsvWriter;
  * <p>The package must be invoked with 4 parameter: <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathSystemOutput</i><br>
  * 
  * 			&nbsp;&nbsp;&nbsp;&nbsp; Example: java -jar rbu-0.1.jar 0.8 0.03 test/gold.tsv test/output.tsv </p>
+ * 
+ * <p>An optional fifth parameter <i>tolerance</i> sets the maximum absolute error of the result of each test case. Only the first positions of each 
+ * ranking are read and evaluated, see RBUEvaluator.withTolerance.</p>
+ * 
+ * <p>Big evaluations can be split by test case in several processes:<br>
+ * 
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; <i>shard</i> <i>shard</i> <i>numShards</i> <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathSystemOutput</i> <i>pathPartialResult</i><br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; <i>merge</i> <i>pathPartialResult</i>...<br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; <i>sharded</i> <i>numShards</i> <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathSystemOutput</i> (runs all the shards as local processes and merges them)</p>
+ * 
+ * <p>Approximate evaluation on a sample of test cases, until the 95% confidence interval of the mean is narrower than <i>targetWidth</i>:<br>
+ * 
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; <i>approx</i> <i>targetWidth</i> <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathSystemOutput</i> [<i>pathReferenceOutput</i>]</p>
+ * 
+ * <p>Watch mode, evaluates the system outputs written in a directory and appends their results to a leaderboard. Files ending in .qrels
+ * are batches of new judgments, added to the gold standard:<br>
+ * 
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; <i>watch</i> <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathDirectory</i> <i>pathLeaderboard</i> [<i>numThreads</i>]</p>
+ * 
+ * <p>Evaluation of some test cases, separated by commas. Only their rows are read from the files, using a .idx index built the first time:<br>
+ * 
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; <i>topics</i> <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathSystemOutput</i> <i>testCases</i></p>
  *
  * @author Jorge Carrillo-de-Albornoz 
  * 
@@ -41,6 +65,13 @@ import com.csvreader.CsvWriter;
 
 public class Evaluate 
 {
+	public static final String COMMAND_SHARD = "shard";
+	public static final String COMMAND_MERGE = "merge";
+	public static final String COMMAND_SHARDED = "sharded";
+	public static final String COMMAND_APPROXIMATE = "approx";
+	public static final String COMMAND_WATCH = "watch";
+	public static final String COMMAND_TOPICS = "topics";
+	
     /**
      * <p>The package must be invoked with 4 parameter: <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathSystemOutput</i><br>
      * 
@@ -50,9 +81,40 @@ public class Evaluate
      */
     public static void main( String[] args )
     {
-    	if(args.length!=4)
+    	if(args.length>0 && args[0].equalsIgnoreCase(COMMAND_SHARD))
+    	{
+    		mainShard(args);
+    		return;
+    	}
+    	if(args.length>0 && args[0].equalsIgnoreCase(COMMAND_MERGE))
+    	{
+    		mainMerge(args);
+    		return;
+    	}
+    	if(args.length>0 && args[0].equalsIgnoreCase(COMMAND_SHARDED))
+    	{
+    		mainSharded(args);
+    		return;
+    	}
+    	if(args.length>0 && args[0].equalsIgnoreCase(COMMAND_APPROXIMATE))
     	{
-    		System.out.println("The number of parameters must be 4: Java rbu ValueParameterP ValueParameterE pathGoldStandard pathSystemOutput \n"
+    		mainApproximate(args);
+    		return;
+    	}
+    	if(args.length>0 && args[0].equalsIgnoreCase(COMMAND_WATCH))
+    	{
+    		mainWatch(args);
+    		return;
+    	}
+    	if(args.length>0 && args[0].equalsIgnoreCase(COMMAND_TOPICS))
+    	{
+    		mainTopics(args);
+    		return;
+    	}
+    	
+    	if(args.length!=4 && args.length!=5)
+    	{
+    		System.out.println("The number of parameters must be 4 or 5: Java rbu ValueParameterP ValueParameterE pathGoldStandard pathSystemOutput [tolerance] \n"
     				+ "Example: java -jar rbu-0.1.jar 0.8 0.03 test/gold.tsv test/output.tsv");
     		System.exit(0);
     	}
@@ -86,6 +148,20 @@ public class Evaluate
 		 * Check the system output for errors/warnings.
 		 * */
     	DiversificationFormat output = new DiversificationFormat();
+    	if(args.length==5)
+    	{
+    		/**
+    		 * With a tolerance, the rows after the last position evaluated are skipped while parsing.
+    		 * */
+    		RBUEvaluator evaluator = new RBUEvaluator(gold, paramP, paramE).withTolerance(Double.parseDouble(args[4]));
+    		output.setMaxRankingDepth(evaluator.getMaxRankingDepth());
+    		output.parseFile(false, outputFile);
+    		EvallResult result = evaluator.evaluate(output);
+    		result.normalizeResult();
+    		System.out.println("Mean " + evaluator.getName() + ": " + result.getAggregatedResult() + " (tolerance " + evaluator.getTolerance() + ", depth " + evaluator.getMaxRankingDepth() + ")");
+    		generateSingleTSVFileForOneOutput(output.getPathFile(), evaluator.getName(), result, new ArrayList<String>(gold.getTableOfTopics().keySet()), new ArrayList<String>(output.getTableOfTopics().keySet()));
+    		return;
+    	}
     	output.parseFile(false, outputFile);
 		
 		RBU rbu = new RBU(gold, output);
@@ -96,6 +172,179 @@ public class Evaluate
 		
     }
     
+    /**
+     * Evaluates one shard of the test cases: <i>shard</i> <i>shard</i> <i>numShards</i> <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathSystemOutput</i> <i>pathPartialResult</i>
+     * 
+     * @param args Parameters
+     */
+    private static void mainShard(String[] args)
+    {
+    	if(args.length!=8)
+    	{
+    		System.out.println("The number of parameters must be 8: Java rbu shard shard numShards ValueParameterP ValueParameterE pathGoldStandard pathSystemOutput pathPartialResult \n"
+    				+ "Example: java -jar rbu-0.1.jar shard 0 4 0.8 0.03 test/gold.tsv test/output.tsv shard-0.tsv");
+    		System.exit(0);
+    	}
+    	boolean ok = ShardedEvaluation.evaluateShard(Integer.parseInt(args[1]), Integer.parseInt(args[2]), Double.parseDouble(args[3]), Double.parseDouble(args[4]), args[5], args[6], args[7]);
+    	System.exit(ok ? 0 : 1);
+    }
+    
+    /**
+     * Merges the partial results of all the shards and writes the EvALL tsv report: <i>merge</i> <i>pathPartialResult</i>...
+     * 
+     * @param args Parameters
+     */
+    private static void mainMerge(String[] args)
+    {
+    	if(args.length<2)
+    	{
+    		System.out.println("The partial results to merge are missing: Java rbu merge pathPartialResult... \n"
+    				+ "Example: java -jar rbu-0.1.jar merge shard-0.tsv shard-1.tsv");
+    		System.exit(0);
+    	}
+    	ArrayList<String> partialFiles = new ArrayList<String>();
+    	for(int i=1;i<args.length;i++)
+    	{
+    		partialFiles.add(args[i]);
+    	}
+    	ShardedEvaluation sharded = new ShardedEvaluation();
+    	if(!sharded.merge(partialFiles))
+    	{
+    		System.exit(1);
+    	}
+    	System.out.println("Mean " + sharded.getMeasureName() + ": " + sharded.getResult().getAggregatedResult());
+    	sharded.generateSingleTSVFile();
+    }
+    
+    /**
+     * Evaluates all the shards as local processes and merges them: <i>sharded</i> <i>numShards</i> <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathSystemOutput</i>
+     * 
+     * @param args Parameters
+     */
+    private static void mainSharded(String[] args)
+    {
+    	if(args.length!=6)
+    	{
+    		System.out.println("The number of parameters must be 6: Java rbu sharded numShards ValueParameterP ValueParameterE pathGoldStandard pathSystemOutput \n"
+    				+ "Example: java -jar rbu-0.1.jar sharded 4 0.8 0.03 test/gold.tsv test/output.tsv");
+    		System.exit(0);
+    	}
+    	ShardedEvaluation sharded = new ShardedEvaluation();
+    	if(!sharded.evaluateLocal(Integer.parseInt(args[1]), Double.parseDouble(args[2]), Double.parseDouble(args[3]), args[4], args[5]))
+    	{
+    		System.exit(1);
+    	}
+    	System.out.println("Mean " + sharded.getMeasureName() + ": " + sharded.getResult().getAggregatedResult());
+    	sharded.generateSingleTSVFile();
+    }
+    
+    /**
+     * Evaluates a sample of the test cases: <i>approx</i> <i>targetWidth</i> <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathSystemOutput</i> [<i>pathReferenceOutput</i>]
+     * 
+     * @param args Parameters
+     */
+    private static void mainApproximate(String[] args)
+    {
+    	if(args.length!=6 && args.length!=7)
+    	{
+    		System.out.println("The number of parameters must be 6 or 7: Java rbu approx targetWidth ValueParameterP ValueParameterE pathGoldStandard pathSystemOutput [pathReferenceOutput] \n"
+    				+ "Example: java -jar rbu-0.1.jar approx 0.01 0.8 0.03 test/gold.tsv test/output.tsv");
+    		System.exit(0);
+    	}
+    	DiversificationFormat gold = new DiversificationFormat();
+		gold.parseFile(true, args[4]);
+    	DiversificationFormat output = new DiversificationFormat();
+    	output.parseFile(false, args[5]);
+    	DiversificationFormat reference = null;
+    	if(args.length==7)
+    	{
+    		reference = new DiversificationFormat();
+    		reference.parseFile(false, args[6]);
+    	}
+    	
+    	RBUEvaluator evaluator = new RBUEvaluator(gold, Double.parseDouble(args[2]), Double.parseDouble(args[3]));
+    	ApproximateEvaluation approximate = new ApproximateEvaluation(evaluator, Double.parseDouble(args[1]));
+    	EvallResult result = approximate.evaluate(output, reference);
+    	System.out.println("Test cases evaluated: " + result.getResults().size() + " of " + evaluator.getTestCases().size() + " (" + approximate.getStop() + ")");
+    	System.out.println("Mean " + evaluator.getName() + ": " + result.getAggregatedResult() + " +- " + approximate.getConfidenceIntervalWidth()/2);
+    	if(approximate.getStop()==ApproximateEvaluation.Stop.NAN_RESULT)
+    	{
+    		System.out.println("Test cases with NaN result: " + approximate.getNanTestCases());
+    	}
+    	if(reference!=null)
+    	{
+    		System.out.println("Mean difference with the reference: " + approximate.getDifferences().getAggregatedResult());
+    	}
+    }
+    
+    /**
+     * Watches a directory for system outputs: <i>watch</i> <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathDirectory</i> <i>pathLeaderboard</i> [<i>numThreads</i>]
+     * 
+     * @param args Parameters
+     */
+    private static void mainWatch(String[] args)
+    {
+    	if(args.length!=6 && args.length!=7)
+    	{
+    		System.out.println("The number of parameters must be 6 or 7: Java rbu watch ValueParameterP ValueParameterE pathGoldStandard pathDirectory pathLeaderboard [numThreads] \n"
+    				+ "Example: java -jar rbu-0.1.jar watch 0.8 0.03 test/gold.tsv spool/ leaderboard.tsv");
+    		System.exit(0);
+    	}
+    	DiversificationFormat gold = new DiversificationFormat();
+		gold.parseFile(true, args[3]);
+		if(gold.isStop())
+		{
+			System.out.println("The gold standard has errors, the watch mode is not started.");
+			System.exit(1);
+		}
+		
+		RBUEvaluator evaluator = new RBUEvaluator(gold, Double.parseDouble(args[1]), Double.parseDouble(args[2]));
+		WatchEvaluation watch = new WatchEvaluation(gold, evaluator, new File(args[4]).toPath(), new File(args[5]));
+		if(args.length==7)
+		{
+			watch.setNumThreads(Integer.parseInt(args[6]));
+		}
+		try
+		{
+			watch.watch();
+		}
+		catch (IOException e)
+		{
+			System.out.println("IO error: the directory cannot be watched " + args[4]);
+			System.exit(1);
+		}
+    }
+    
+    /**
+     * Evaluates some test cases: <i>topics</i> <i>ValueParameterP</i> <i>ValueParameterE</i> <i>pathGoldStandard</i> <i>pathSystemOutput</i> <i>testCases</i>
+     * 
+     * @param args Parameters
+     */
+    private static void mainTopics(String[] args)
+    {
+    	if(args.length!=6)
+    	{
+    		System.out.println("The number of parameters must be 6: Java rbu topics ValueParameterP ValueParameterE pathGoldStandard pathSystemOutput testCases \n"
+    				+ "Example: java -jar rbu-0.1.jar topics 0.8 0.03 test/gold.tsv test/output.tsv 281,282");
+    		System.exit(0);
+    	}
+    	List<String> testCases = new ArrayList<String>(new LinkedHashSet<String>(Arrays.asList(args[5].split(","))));
+    	DiversificationFormat gold = new DiversificationFormat();
+		gold.parseTopics(true, args[3], testCases);
+    	DiversificationFormat output = new DiversificationFormat();
+    	output.parseTopics(false, args[4], testCases);
+    	
+    	RBU rbu = new RBU(gold, output);
+		rbu.setParameterPValue(Double.parseDouble(args[1]));
+		rbu.setParameterEValue(Double.parseDouble(args[2]));
+		rbu.evaluate();
+		for (String testCase : testCases)
+		{
+			System.out.println(rbu.getName() + " " + testCase + ": " + rbu.getResult().getResults().get(testCase));
+		}
+		generateSingleTSVFileForOneOutput(output, gold, rbu);
+    }
+    
     
 	/**
 	 * Method that writes the EvALL tsv report
@@ -106,7 +355,21 @@ public class Evaluate
 	 */
 	public static void generateSingleTSVFileForOneOutput(DiversificationFormat output, DiversificationFormat gold, RBU rbu)
 	{
-		
+		generateSingleTSVFileForOneOutput(output.getPathFile(), rbu.getName(), rbu.getResult(), new ArrayList<String>(gold.getTableOfTopics().keySet()), new ArrayList<String>(output.getTableOfTopics().keySet()));
+	}
+	
+	/**
+	 * Method that writes the EvALL tsv report from the results of a measure, without the parsed files. 
+	 * 
+	 * @param originalName	Path of the system output file
+	 * @param measureName	Name of the measure
+	 * @param result		Results of the measure for each test case
+	 * @param goldTopics	Test cases present in the gold standard, in the order of the report
+	 * @param outputTopics	Test cases present in the system output, in the order of the report
+	 */
+	public static void generateSingleTSVFileForOneOutput(String originalName, String measureName, EvallResult result, List<String> goldTopics, List<String> outputTopics)
+	{
+		HashSet<String> goldTopicsSet = new HashSet<String>(goldTopics);
 		File outputFile = new File("Results.tsv");			
 		try
 		{
@@ -125,35 +388,33 @@ public class Evaluate
 
 				csvOutput.writeComment("\tThis file contains the results for the output: ");		
 
-				String originalName = output.getPathFile();
 				String mix =  MessageFormat.format("\t\t\t\u2022 {0}", originalName);
 				csvOutput.writeComment(mix);			
 				csvOutput.writeComment("");
 				csvOutput.writeComment("\tThe next table contains the results for each test case in this output. \n#\tNotice that first are shown the test cases present in the gold, and after that those not present. \n#\tThose measures that do not satisfy the preconditions are marked with -.");
 				csvOutput.writeComment("############################################################################");
 				csvOutput.writeComment("The measures included in the table are:");
-				csvOutput.writeComment("\t\t- " + rbu.getName());
+				csvOutput.writeComment("\t\t- " + measureName);
 
 				csvOutput.writeComment("############################################################################");
 				
 				
 				String title[] = new String[2];
 				title[0] = "Test Case";
-				title[1] = rbu.getName();
+				title[1] = measureName;
 				csvOutput.writeRecord(title);
 
 
 				/**
 				 * First we check the test case of the gold standard.
 				 * */
-				for (Map.Entry<String, HashMap<String, HashMap<String,Double>>> entry : gold.getTableOfTopics().entrySet()) 
+				for (String topic : goldTopics) 
 				{ 
-					String topic = entry.getKey();
 					String record[] = new String[2];
 					record[0] = topic;
-					if(rbu.getResult().getResults().get(topic)!=null)
+					if(result.getResults().get(topic)!=null)
 					{
-						record[1] = String.format("%.4f",rbu.getResult().getResults().get(topic));
+						record[1] = String.format("%.4f",result.getResults().get(topic));
 					}
 					else
 					{
@@ -165,18 +426,17 @@ public class Evaluate
 				/**
 				 * Then we check the test case of the output and write those not present in the gold standard.
 				 * */
-				for (Map.Entry<String, HashMap<String, HashMap<String,Double>>> entry : output.getTableOfTopics().entrySet()) 
+				for (String topic : outputTopics) 
 				{ 
-					String topic = entry.getKey();
-					if(gold.getTableOfTopics().get(topic)!=null)
+					if(goldTopicsSet.contains(topic))
 					{
 						continue;
 					}
 					String record[] = new String[2];
 					record[0] = topic;
-					if(rbu.getResult().getResults().get(topic)!=null)
+					if(result.getResults().get(topic)!=null)
 					{
-						record[1] = String.format("%.4f",rbu.getResult().getResults().get(topic));
+						record[1] = String.format("%.4f",result.getResults().get(topic));
 					}
 					else
 					{
@@ -0,0 +1,570 @@
+package es.uned.nlp.rbu;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *
+ * <p>This source implements the metric RBU presented in the paper:<br><br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; An Axiomatic Analysis of Diversity Evaluation Metrics: Introducing the Rank-Biased Utility Metric.<br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; Enrique Amigó, Damiano Spina, Jorge Carrillo-de-Albornoz. In proceedings of SIGIR'18.</p>
+ *
+ * <p>Please, if you use this resource please cite it.</p>
+ *
+ * <p>This package is also included in the Evaluation Platform EvALL (www.evall.uned.es), along with extended features: pdf and latex reports,
+ * other diversity metrics, statistical significance test, etc.</p>
+ *
+ * <p>Immutable RBU evaluator. The gold standard and the parameters are fixed when it is built, so the same evaluator can evaluate any number of
+ * system outputs, also concurrently from several threads. Each evaluation returns a new EvallResult. The gold standard is copied to arrays indexed
+ * by item and aspect, and the temporal buffers of the computation are kept per thread and reused between evaluations.</p>
+ *
+ * <p>The results are exactly the same as those of the RBU class: the sums and products are done in the same order.</p>
+ *
+ * <p>Test cases whose relevance values are only 0 and 1 (and up to 64 aspects) use a specialized computation. With binary relevance RELi is 1/2
+ * for every relevant item, so (1-RELj) over the items already ranked is 2^-k, where k is the number of relevant items of the aspect already
+ * ranked. The aspects of each item are stored in a bitmask and only the aspects of the bits set are updated.</p>
+ *
+ * <p>An evaluator with an error tolerance (see withTolerance) stops each ranking at the first position k where the rest of the ranking cannot
+ * change the result more than the tolerance: RELi and errMulti are at most 1, so the positions from k add at most (sum of weights + e)*p^k.
+ * The right side of RBU is calculated with its closed form, e*(1-p^n).</p>
+ *
+ * @author Jorge Carrillo-de-Albornoz
+ *
+ *  Copyright (c) 20018 - Permission is granted for use and modification of this file for research, non-commercial purposes.
+ */
+
+public final class RBUEvaluator
+{
+	private final String name = "RBU";
+	private final double parameterPValue;
+	private final double parameterEValue;
+
+	/**
+	 * Maximum absolute error of the result of each test case, 0 for the exact result.
+	 * */
+	private final double tolerance;
+
+	/**
+	 * Gold standard of each test case, in the same order as the gold standard tables.
+	 * */
+	private final Map<String, TopicGold> topics;
+
+	/**
+	 * Test cases in the same order, the ordinal of each test case in the result stores.
+	 * */
+	private final List<String> testCases;
+	private final TopicGold[] topicsByOrdinal;
+
+	private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+	/**
+	 * @param gold Gold Standard DiversificationFormat object. It is copied, later changes in it do not affect the evaluator.
+	 * @param parameterPValue Value of the parameter p of RBU
+	 * @param parameterEValue Value of the parameter e of RBU
+	 */
+	public RBUEvaluator(DiversificationFormat gold, double parameterPValue, double parameterEValue)
+	{
+		this(compile(gold), parameterPValue, parameterEValue, 0.0d);
+	}
+
+	private RBUEvaluator(LinkedHashMap<String, TopicGold> compiled, double parameterPValue, double parameterEValue, double tolerance)
+	{
+		this.parameterPValue = parameterPValue;
+		this.parameterEValue = parameterEValue;
+		this.tolerance = tolerance;
+		this.topics = Collections.unmodifiableMap(compiled);
+		this.testCases = Collections.unmodifiableList(new ArrayList<String>(compiled.keySet()));
+		this.topicsByOrdinal = compiled.values().toArray(new TopicGold[compiled.size()]);
+	}
+
+	/**
+	 * Method that returns a new evaluator where only some test cases are copied again from the gold standard, for instance after adding
+	 * judgments with DiversificationFormat.appendJudgments. The rest of test cases are shared with this evaluator, which does not change.
+	 * New test cases are added after the existing ones, so the ordinals of the existing test cases do not change.
+	 *
+	 * @param gold Gold Standard DiversificationFormat object, with the updated test cases
+	 * @param updated Test cases to copy again
+	 * @return The new evaluator
+	 */
+	public RBUEvaluator withUpdatedTestCases(DiversificationFormat gold, Collection<String> updated)
+	{
+		LinkedHashMap<String, TopicGold> compiled = new LinkedHashMap<String, TopicGold>(this.topics);
+		for (String testCase : updated)
+		{
+			HashMap<String, HashMap<String, Double>> valuesGold = gold.getTableOfTopics().get(testCase);
+			if(valuesGold!=null)
+			{
+				compiled.put(testCase, new TopicGold(valuesGold, gold.getTableOfAspects().get(testCase)));
+			}
+		}
+		return new RBUEvaluator(compiled, this.parameterPValue, this.parameterEValue, this.tolerance);
+	}
+
+	/**
+	 * Method that returns a new evaluator with the same gold standard, where the result of each test case can differ from the exact one
+	 * at most in the tolerance. Only the first positions of each ranking are evaluated, see getMaxRankingDepth.
+	 *
+	 * @param tolerance Maximum absolute error of the result of each test case, 0 for the exact result
+	 * @return The new evaluator
+	 */
+	public RBUEvaluator withTolerance(double tolerance)
+	{
+		return new RBUEvaluator(new LinkedHashMap<String, TopicGold>(this.topics), this.parameterPValue, this.parameterEValue, tolerance);
+	}
+
+	private static LinkedHashMap<String, TopicGold> compile(DiversificationFormat gold)
+	{
+		LinkedHashMap<String, TopicGold> compiled = new LinkedHashMap<String, TopicGold>();
+		for (Map.Entry<String, HashMap<String, HashMap<String, Double>>> entry : gold.getTableOfTopics().entrySet())
+		{
+			compiled.put(entry.getKey(), new TopicGold(entry.getValue(), gold.getTableOfAspects().get(entry.getKey())));
+		}
+		return compiled;
+	}
+
+	/**
+	 * @param topic Test case to analyze
+	 * @return The number of positions of the ranking to evaluate with the tolerance, from the bound (sum of weights + e)*p^k &lt;= tolerance
+	 */
+	private int getRankingDepth(TopicGold topic)
+	{
+		if(this.tolerance<=0.0d || this.parameterPValue<=0.0d || this.parameterPValue>=1.0d)
+		{
+			return Integer.MAX_VALUE;
+		}
+		double bound = topic.totalWeight + Math.abs(this.parameterEValue);
+		if(bound<=this.tolerance)
+		{
+			return 0;
+		}
+		double depth = Math.ceil(Math.log(this.tolerance/bound)/Math.log(this.parameterPValue));
+		return depth<Integer.MAX_VALUE ? (int) depth : Integer.MAX_VALUE;
+	}
+
+	/**
+	 * @return The number of positions of the rankings evaluated in the test case that needs more of them, Integer.MAX_VALUE if the whole 
+	 * rankings are evaluated. The rows of the system output after this position can be skipped when parsing, see DiversificationFormat.setMaxRankingDepth.
+	 */
+	public int getMaxRankingDepth()
+	{
+		int max = 0;
+		for (TopicGold topic : this.topicsByOrdinal)
+		{
+			max = Math.max(max, getRankingDepth(topic));
+		}
+		return max;
+	}
+
+	/**
+	 * Method that evaluates a system output, in a DiversificationFormat object, using the RBU metric.
+	 *
+	 * @param output System output DiversificationFormat object
+	 * @return A new result with the value of each test case of the gold standard
+	 */
+	public EvallResult evaluate(DiversificationFormat output)
+	{
+		EvallResult result = new EvallResult();
+		evaluate(output, result);
+		return result;
+	}
+
+	/**
+	 * Method that evaluates a system output and puts the value of each test case of the gold standard in the given result.
+	 *
+	 * @param output System output DiversificationFormat object
+	 * @param result Result where the values are stored
+	 */
+	public void evaluate(DiversificationFormat output, EvallResult result)
+	{
+		HashMap<String, ArrayList<String>> rankings = output.getRankingOfTopics();
+		for (Map.Entry<String, TopicGold> entry : this.topics.entrySet())
+		{
+			result.getResults().put(entry.getKey(), evaluate(entry.getValue(), rankings.get(entry.getKey())));
+		}
+	}
+
+	/**
+	 * @return A new empty result store with the test cases of the gold standard
+	 */
+	public TopicResultStore newResultStore()
+	{
+		return new TopicResultStore(this.testCases);
+	}
+
+	/**
+	 * Method that evaluates a system output and stores the value of each test case of the gold standard in a result store.
+	 *
+	 * @param output System output DiversificationFormat object
+	 * @param store Result store, usually created by newResultStore. Test cases not in the store are not evaluated.
+	 */
+	public void evaluate(DiversificationFormat output, TopicResultStore store)
+	{
+		HashMap<String, ArrayList<String>> rankings = output.getRankingOfTopics();
+		for(int i=0;i<this.topicsByOrdinal.length;i++)
+		{
+			String testCase = this.testCases.get(i);
+			int ordinal = store.getOrdinal(testCase);
+			if(ordinal>=0)
+			{
+				store.put(ordinal, evaluate(this.topicsByOrdinal[i], rankings.get(testCase)));
+			}
+		}
+	}
+
+	/**
+	 * @param testCase Test case to evaluate
+	 * @param ranking Ranking of the system output for the test case, it can be null
+	 * @return The RBU value of the test case, or null if the test case is not in the gold standard
+	 */
+	public Double evaluateTestCase(String testCase, List<String> ranking)
+	{
+		TopicGold topic = this.topics.get(testCase);
+		if(topic==null)
+		{
+			return null;
+		}
+		return evaluate(topic, ranking);
+	}
+
+	private double evaluate(TopicGold topic, List<String> ranking)
+	{
+		int size = ranking!=null ? ranking.size() : 0;
+		int depth = Math.min(size, getRankingDepth(topic));
+		Scratch buffers = this.scratch.get();
+		int numAspects = topic.weights.length;
+		double[] discounts = buffers.discounts(depth, this.parameterPValue);
+		double[] rbpMULerr = buffers.rbpMULerr(numAspects);
+		double[] errMulti = buffers.errMulti(numAspects);
+
+		/**
+		 * errMulti keeps, for each aspect, the product of (1-RELj) of the items already ranked. Items not present in the gold have relevance 0 and
+		 * do not change any value.
+		 * */
+		double rbuRight = 0.0d;
+		if(topic.relevantAspects!=null)
+		{
+			rbuRight = evaluateBinary(topic, ranking, depth, discounts, rbpMULerr, buffers.relevantRanked(numAspects));
+		}
+		else
+		{
+			for(int i=0;i<depth;i++)
+			{
+				rbuRight += discounts[i];
+				Integer item = topic.items.get(ranking.get(i));
+				if(item==null)
+				{
+					continue;
+				}
+				int offset = item * numAspects;
+				for(int a=0;a<numAspects;a++)
+				{
+					rbpMULerr[a] += discounts[i] * topic.rel[offset+a] * errMulti[a];
+					errMulti[a] *= topic.notRel[offset+a];
+				}
+			}
+		}
+
+		double rbuLetf = 0.0d;
+		for(int a=0;a<numAspects;a++)
+		{
+			rbuLetf += topic.weights[a]*rbpMULerr[a]* (1-this.parameterPValue);
+		}
+		if(this.tolerance>0.0d)
+		{
+			rbuRight = this.parameterEValue * (1-Math.pow(this.parameterPValue, size));
+		}
+		else
+		{
+			rbuRight = rbuRight*this.parameterEValue * (1-this.parameterPValue);
+		}
+		return rbuLetf - rbuRight;
+	}
+
+	/**
+	 * Computation for test cases with binary relevance. For each ranked item, only the aspects where it is relevant are updated, with
+	 * RELi*errMulti = 1/2 * 2^-k, where k counts the relevant items of the aspect already ranked.
+	 *
+	 * @return The sum of the discounts of the ranking
+	 */
+	private static double evaluateBinary(TopicGold topic, List<String> ranking, int size, double[] discounts, double[] rbpMULerr, int[] relevantRanked)
+	{
+		double rbuRight = 0.0d;
+		for(int i=0;i<size;i++)
+		{
+			rbuRight += discounts[i];
+			Integer item = topic.items.get(ranking.get(i));
+			if(item==null)
+			{
+				continue;
+			}
+			long aspects = topic.relevantAspects[item];
+			while(aspects!=0L)
+			{
+				int a = Long.numberOfTrailingZeros(aspects);
+				aspects &= aspects-1;
+				int k = relevantRanked[a]++;
+				rbpMULerr[a] += discounts[i] * 0.5d * (k<HALF_POWERS.length ? HALF_POWERS[k] : 0.0d);
+			}
+			/**
+			 * As in RBU, an item judged for an aspect without relevant items gives NaN.
+			 * */
+			aspects = topic.undefinedAspects[item];
+			while(aspects!=0L)
+			{
+				int a = Long.numberOfTrailingZeros(aspects);
+				aspects &= aspects-1;
+				rbpMULerr[a] = Double.NaN;
+			}
+		}
+		return rbuRight;
+	}
+
+	/**
+	 * 2^-k obtained multiplying by (1-1/2) k times, as the product of (1-RELj) in RBU. From k=1075 it is 0.
+	 * */
+	private static final double[] HALF_POWERS = new double[1075];
+	static
+	{
+		double errMulti = 1.0d;
+		for(int k=0;k<HALF_POWERS.length;k++)
+		{
+			HALF_POWERS[k] = errMulti;
+			errMulti *= (1-0.5d);
+		}
+	}
+
+	public Set<String> getTestCases()
+	{
+		return this.topics.keySet();
+	}
+
+	/**
+	 * @param testCase Test case to analyze
+	 * @return The number of items of the test case in the gold standard, 0 if the test case is not in the gold standard
+	 */
+	public int getNumberOfItems(String testCase)
+	{
+		TopicGold topic = this.topics.get(testCase);
+		return topic!=null ? topic.items.size() : 0;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public double getParameterPValue()
+	{
+		return parameterPValue;
+	}
+
+	public double getParameterEValue()
+	{
+		return parameterEValue;
+	}
+
+	public double getTolerance()
+	{
+		return tolerance;
+	}
+
+	/**
+	 * Gold standard of one test case, with the values of RELi and (1-RELi) of each item and aspect.
+	 * */
+	private static final class TopicGold
+	{
+		/**
+		 * Index of each item in the arrays.
+		 * */
+		private final HashMap<String, Integer> items = new HashMap<String, Integer>();
+
+		/**
+		 * Weight of each aspect, in the same order as the table of aspects of the gold standard.
+		 * */
+		private final double[] weights;
+		private final double totalWeight;
+
+		/**
+		 * RELi of each item and aspect: (2^relevance-1)/2^maxRelevance, or 0 if the item is not judged for the aspect. Null for binary relevance.
+		 * */
+		private final double[] rel;
+
+		/**
+		 * (1-RELj) of each item and aspect, 1 if the item is not judged or the aspect has no relevant items. Null for binary relevance.
+		 * */
+		private final double[] notRel;
+
+		/**
+		 * For binary relevance, bitmask of the aspects where each item is relevant, and of the aspects without relevant items where it is judged.
+		 * Null otherwise.
+		 * */
+		private final long[] relevantAspects;
+		private final long[] undefinedAspects;
+
+		private TopicGold(HashMap<String, HashMap<String, Double>> valuesGold, HashMap<String, Double> lstAspect)
+		{
+			int numAspects = lstAspect.size();
+			String[] aspects = new String[numAspects];
+			this.weights = new double[numAspects];
+			int a = 0;
+			for (Map.Entry<String, Double> entry : lstAspect.entrySet())
+			{
+				aspects[a] = entry.getKey();
+				this.weights[a] = entry.getValue();
+				a++;
+			}
+			double totalWeight = 0.0d;
+			for (double weight : this.weights)
+			{
+				totalWeight += weight;
+			}
+			this.totalWeight = totalWeight;
+
+			/**
+			 * The max value of each aspect is the highest relevance greater than 0, as in the perfect ranking of the gold.
+			 * */
+			double[] powMaxValueGoldPerAspect = new double[numAspects];
+			for (HashMap<String, Double> values : valuesGold.values())
+			{
+				for(a=0;a<numAspects;a++)
+				{
+					Double value = values.get(aspects[a]);
+					if(value!=null && value>0.0d && Math.pow(2, value)>powMaxValueGoldPerAspect[a])
+					{
+						powMaxValueGoldPerAspect[a] = Math.pow(2, value);
+					}
+				}
+			}
+
+			boolean binary = numAspects<=Long.SIZE;
+			for (HashMap<String, Double> values : valuesGold.values())
+			{
+				for (Double value : values.values())
+				{
+					binary &= value==0.0d || value==1.0d;
+				}
+			}
+			if(binary)
+			{
+				this.rel = null;
+				this.notRel = null;
+				this.relevantAspects = new long[valuesGold.size()];
+				this.undefinedAspects = new long[valuesGold.size()];
+				int item = 0;
+				for (Map.Entry<String, HashMap<String, Double>> entry : valuesGold.entrySet())
+				{
+					this.items.put(entry.getKey(), item);
+					for(a=0;a<numAspects;a++)
+					{
+						Double value = entry.getValue().get(aspects[a]);
+						if(value!=null && powMaxValueGoldPerAspect[a]==0.0d)
+						{
+							this.undefinedAspects[item] |= 1L<<a;
+						}
+						else if(value!=null && value==1.0d)
+						{
+							this.relevantAspects[item] |= 1L<<a;
+						}
+					}
+					item++;
+				}
+				return;
+			}
+
+			this.relevantAspects = null;
+			this.undefinedAspects = null;
+			this.rel = new double[valuesGold.size()*numAspects];
+			this.notRel = new double[valuesGold.size()*numAspects];
+			int item = 0;
+			for (Map.Entry<String, HashMap<String, Double>> entry : valuesGold.entrySet())
+			{
+				this.items.put(entry.getKey(), item);
+				for(a=0;a<numAspects;a++)
+				{
+					int offset = item*numAspects+a;
+					Double value = entry.getValue().get(aspects[a]);
+					this.notRel[offset] = 1.0d;
+					if(value!=null)
+					{
+						/**
+						 * As in RBU, an aspect without relevant items gives NaN as RELi but it is not used in (1-RELj).
+						 * */
+						this.rel[offset] = (Math.pow(2, value)-1)/powMaxValueGoldPerAspect[a];
+						if(powMaxValueGoldPerAspect[a]!=0.0d)
+						{
+							this.notRel[offset] = 1-this.rel[offset];
+						}
+					}
+				}
+				item++;
+			}
+		}
+	}
+
+	/**
+	 * Temporal buffers of one thread. They only grow, so after the first evaluations there are no new allocations.
+	 * */
+	private static final class Scratch
+	{
+		private double[] discounts = new double[0];
+		private double[] rbpMULerr = new double[0];
+		private double[] errMulti = new double[0];
+		private int[] relevantRanked = new int[0];
+
+		/**
+		 * @return p^(posI-1) for each position of the ranking.
+		 * */
+		private double[] discounts(int size, double parameterPValue)
+		{
+			if(this.discounts.length<size)
+			{
+				double[] grown = new double[Math.max(size, 2*this.discounts.length)];
+				System.arraycopy(this.discounts, 0, grown, 0, this.discounts.length);
+				for(int i=this.discounts.length;i<grown.length;i++)
+				{
+					double posI = i+1;
+					grown[i] = Math.pow(parameterPValue, posI-1);
+				}
+				this.discounts = grown;
+			}
+			return this.discounts;
+		}
+
+		private double[] rbpMULerr(int numAspects)
+		{
+			if(this.rbpMULerr.length<numAspects)
+			{
+				this.rbpMULerr = new double[numAspects];
+			}
+			Arrays.fill(this.rbpMULerr, 0, numAspects, 0.0d);
+			return this.rbpMULerr;
+		}
+
+		private double[] errMulti(int numAspects)
+		{
+			if(this.errMulti.length<numAspects)
+			{
+				this.errMulti = new double[numAspects];
+			}
+			Arrays.fill(this.errMulti, 0, numAspects, 1.0d);
+			return this.errMulti;
+		}
+
+		private int[] relevantRanked(int numAspects)
+		{
+			if(this.relevantRanked.length<numAspects)
+			{
+				this.relevantRanked = new int[numAspects];
+			}
+			Arrays.fill(this.relevantRanked, 0, numAspects, 0);
+			return this.relevantRanked;
+		}
+	}
+}
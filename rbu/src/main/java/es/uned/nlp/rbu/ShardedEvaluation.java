@@ -0,0 +1,394 @@
+package es.uned.nlp.rbu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.csvreader.CsvReader;
+import com.csvreader.CsvWriter;
+
+
+/**
+ *
+ * <p>This source implements the metric RBU presented in the paper:<br><br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; An Axiomatic Analysis of Diversity Evaluation Metrics: Introducing the Rank-Biased Utility Metric.<br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; Enrique Amigó, Damiano Spina, Jorge Carrillo-de-Albornoz. In proceedings of SIGIR'18.</p>
+ *
+ * <p>Please, if you use this resource please cite it.</p>
+ *
+ * <p>This package is also included in the Evaluation Platform EvALL (www.evall.uned.es), along with extended features: pdf and latex reports,
+ * other diversity metrics, statistical significance test, etc.</p>
+ *
+ * <p>Evaluation split in several independent processes. The test cases are partitioned in shards by a stable hash of their name, each shard
+ * only loads its test cases from the gold standard and the system output and writes a partial result file. The partial results are then merged
+ * in the final EvALL tsv report. As the result of each test case does not depend on the others, the merged results are identical to those of
+ * a single process. The line of the first row of each test case is kept, so the merged report lists the test cases in the same order as the
+ * report of a single process (see DiversificationFormat.getTopicsInParserOrder).</p>
+ *
+ * @author Jorge Carrillo-de-Albornoz
+ *
+ *  Copyright (c) 20018 - Permission is granted for use and modification of this file for research, non-commercial purposes.
+ */
+
+public class ShardedEvaluation
+{
+	private static final String RECORD_SHARD = "shard";
+	private static final String RECORD_OUTPUT = "output";
+	private static final String RECORD_GOLD = "gold";
+	private static final String RECORD_OUTPUT_TOPIC = "outputtopic";
+
+	private String outputName = null;
+	private String measureName = null;
+	
+	/**
+	 * Parameters of RBU and checksum of the gold standard, and checksum of the system output, of the first partial result. They must be the
+	 * same in all of them.
+	 * */
+	private String[] configuration = null;
+	private String outputChecksum = null;
+	private EvallResult result = new EvallResult();
+
+	/**
+	 * Test cases of the gold standard and of the system output, in the order of the parser.
+	 * */
+	private List<String> goldTopics = new ArrayList<String>();
+	private List<String> outputTopics = new ArrayList<String>();
+
+	/**
+	 * @param testCase Test case to analyze
+	 * @param numShards Number of shards
+	 * @return The shard of the test case. String.hashCode is defined by the Java specification, so it is the same in every process.
+	 */
+	public static int getShard(String testCase, int numShards)
+	{
+		return Math.floorMod(testCase.hashCode(), numShards);
+	}
+
+	/**
+	 * Method that evaluates only the test cases of one shard and writes the partial result file.
+	 *
+	 * @param shard			Index of the shard, from 0 to numShards-1
+	 * @param numShards		Number of shards
+	 * @param paramP		Value of the parameter p of RBU
+	 * @param paramE		Value of the parameter e of RBU
+	 * @param goldStandardFile	Path of the gold standard file
+	 * @param outputFile	Path of the system output file
+	 * @param partialFile	Path of the partial result file
+	 * @return True if the partial result file was written
+	 */
+	public static boolean evaluateShard(int shard, int numShards, Double paramP, Double paramE, String goldStandardFile, String outputFile, String partialFile)
+	{
+		if(numShards<1 || shard<0 || shard>=numShards)
+		{
+			System.out.println("The shard must be between 0 and " + (numShards-1));
+			return false;
+		}
+
+		DiversificationFormat gold = new DiversificationFormat();
+		gold.setTopicFilter(testCase -> getShard(testCase, numShards)==shard);
+		gold.parseFile(true, goldStandardFile);
+
+		DiversificationFormat output = new DiversificationFormat();
+		output.setTopicFilter(testCase -> getShard(testCase, numShards)==shard);
+		output.parseFile(false, outputFile);
+
+		RBU rbu = new RBU(gold, output);
+		rbu.setParameterPValue(paramP);
+		rbu.setParameterEValue(paramE);
+		rbu.evaluate();
+
+		String goldChecksum;
+		String outputChecksum;
+		try
+		{
+			goldChecksum = getChecksum(goldStandardFile);
+			outputChecksum = getChecksum(outputFile);
+		}
+		catch (IOException e)
+		{
+			System.out.println("IO error: the checksum of the gold standard and the system output cannot be calculated.");
+			return false;
+		}
+
+		try
+		{
+			CsvWriter csvOutput = new CsvWriter(new FileOutputStream(new File(partialFile), false), '\t', Charset.forName(StandardCharsets.UTF_8.displayName()));
+			csvOutput.setTextQualifier('\"');
+			csvOutput.setUseTextQualifier(true);
+			csvOutput.setForceQualifier(true);
+
+			csvOutput.writeComment("Partial " + rbu.getName() + " results of shard " + shard + " of " + numShards);
+			csvOutput.writeRecord(new String[] {RECORD_SHARD, String.valueOf(shard), String.valueOf(numShards), rbu.getName(), String.valueOf(paramP), String.valueOf(paramE), goldChecksum});
+			csvOutput.writeRecord(new String[] {RECORD_OUTPUT, output.getPathFile(), outputChecksum});
+
+			/**
+			 * Results are written with all the digits, so the merge does not lose precision.
+			 * */
+			for (Map.Entry<String, Double> entry : rbu.getResult().getResults().entrySet())
+			{
+				String value = entry.getValue()!=null ? Double.toString(entry.getValue()) : "-";
+				csvOutput.writeRecord(new String[] {RECORD_GOLD, entry.getKey(), value, String.valueOf(gold.getFirstLineOfTopics().get(entry.getKey()))});
+			}
+			for (Map.Entry<String, Long> entry : output.getFirstLineOfTopics().entrySet())
+			{
+				csvOutput.writeRecord(new String[] {RECORD_OUTPUT_TOPIC, entry.getKey(), String.valueOf(entry.getValue())});
+			}
+			csvOutput.close();
+		}
+		catch (IOException e)
+		{
+			System.out.println("IO error: the partial result file cannot be written " + partialFile);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Method that merges the partial result files of all the shards. Every shard must be present exactly once, and all of them must be 
+	 * evaluated with the same parameters, gold standard and system output.
+	 *
+	 * @param partialFiles	Paths of the partial result files
+	 * @return True if the partial results were merged
+	 */
+	public boolean merge(List<String> partialFiles)
+	{
+		int numShards = -1;
+		boolean[] seen = null;
+		HashMap<String, Long> goldLines = new HashMap<String, Long>();
+		HashMap<String, Double> goldValues = new HashMap<String, Double>();
+		HashMap<String, Long> outputLines = new HashMap<String, Long>();
+		for (String partialFile : partialFiles)
+		{
+			try
+			{
+				CsvReader reader = new CsvReader(new InputStreamReader(new FileInputStream(partialFile), Charset.forName(StandardCharsets.UTF_8.displayName())), '\t');
+				reader.setUseTextQualifier(true);
+				reader.setTextQualifier('\"');
+				reader.setUseComments(true);
+				try
+				{
+					while(reader.readRecord())
+					{
+						String[] record = reader.getValues();
+						if(record[0].equals(RECORD_SHARD))
+						{
+							if(record.length!=7)
+							{
+								System.out.println("Format error: partial result file not well formed " + partialFile);
+								return false;
+							}
+							int shard = Integer.parseInt(record[1]);
+							int count = Integer.parseInt(record[2]);
+							if(numShards==-1)
+							{
+								numShards = count;
+								seen = new boolean[numShards];
+								this.measureName = record[3];
+							}
+							if(count!=numShards || shard<0 || shard>=numShards || seen[shard])
+							{
+								System.out.println("Merge error: shard " + shard + " of " + count + " is duplicated or does not match the other partial results. File " + partialFile);
+								return false;
+							}
+							seen[shard] = true;
+							String[] configuration = Arrays.copyOfRange(record, 4, 7);
+							if(this.configuration!=null && !Arrays.equals(this.configuration, configuration))
+							{
+								System.out.println("Merge error: the partial results were evaluated with different parameters or gold standards. File " + partialFile);
+								return false;
+							}
+							this.configuration = configuration;
+						}
+						else if(record[0].equals(RECORD_OUTPUT))
+						{
+							if(this.outputChecksum!=null && !this.outputChecksum.equals(record[2]))
+							{
+								System.out.println("Merge error: the partial results belong to different system outputs. File " + partialFile);
+								return false;
+							}
+							if(this.outputName==null)
+							{
+								this.outputName = record[1];
+							}
+							this.outputChecksum = record[2];
+						}
+						else if(record[0].equals(RECORD_GOLD))
+						{
+							goldValues.put(record[1], record[2].equals("-") ? null : Double.parseDouble(record[2]));
+							goldLines.put(record[1], Long.parseLong(record[3]));
+						}
+						else if(record[0].equals(RECORD_OUTPUT_TOPIC))
+						{
+							outputLines.put(record[1], Long.parseLong(record[2]));
+						}
+					}
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+			catch (FileNotFoundException e)
+			{
+				System.out.println("File not found: " + partialFile);
+				return false;
+			}
+			catch (IOException | NumberFormatException | ArrayIndexOutOfBoundsException e)
+			{
+				System.out.println("Format error: partial result file not well formed " + partialFile);
+				return false;
+			}
+		}
+
+		if(numShards==-1)
+		{
+			System.out.println("Merge error: there are no partial results to merge.");
+			return false;
+		}
+		for(int i=0;i<numShards;i++)
+		{
+			if(!seen[i])
+			{
+				System.out.println("Merge error: the partial result of shard " + i + " of " + numShards + " is missing.");
+				return false;
+			}
+		}
+
+		this.result.getResults().putAll(goldValues);
+		this.goldTopics = DiversificationFormat.getTopicsInParserOrder(goldLines);
+		this.outputTopics = DiversificationFormat.getTopicsInParserOrder(outputLines);
+		this.result.normalizeResult();
+		return true;
+	}
+
+	/**
+	 * @param pathFile Path of the file
+	 * @return The SHA-256 of the content of the file in hexadecimal, which is the same for copies of the file in other paths or machines
+	 * @throws IOException If the file cannot be read
+	 */
+	private static String getChecksum(String pathFile) throws IOException
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IOException("SHA-256 is not available", e);
+		}
+		try (InputStream input = new FileInputStream(pathFile))
+		{
+			byte[] buffer = new byte[1 << 16];
+			int read;
+			while((read = input.read(buffer))!=-1)
+			{
+				digest.update(buffer, 0, read);
+			}
+		}
+		StringBuilder checksum = new StringBuilder();
+		for (byte b : digest.digest())
+		{
+			checksum.append(String.format("%02x", b));
+		}
+		return checksum.toString();
+	}
+
+	/**
+	 * Method that evaluates a system output in several local processes, one per shard, and merges their partial results.
+	 * The processes are launched with the same java and classpath of the current process.
+	 *
+	 * @param numShards		Number of shards
+	 * @param paramP		Value of the parameter p of RBU
+	 * @param paramE		Value of the parameter e of RBU
+	 * @param goldStandardFile	Path of the gold standard file
+	 * @param outputFile	Path of the system output file
+	 * @return True if all the shards finished and their results were merged
+	 */
+	public boolean evaluateLocal(int numShards, Double paramP, Double paramE, String goldStandardFile, String outputFile)
+	{
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		String classPath = System.getProperty("java.class.path");
+		List<String> partialFiles = new ArrayList<String>();
+		List<Process> workers = new ArrayList<Process>();
+		try
+		{
+			File workDir = Files.createTempDirectory("rbu-shards").toFile();
+			for(int shard=0;shard<numShards;shard++)
+			{
+				String partialFile = new File(workDir, "shard-" + shard + ".tsv").getPath();
+				partialFiles.add(partialFile);
+				ProcessBuilder builder = new ProcessBuilder(java, "-cp", classPath, Evaluate.class.getName(), Evaluate.COMMAND_SHARD,
+						String.valueOf(shard), String.valueOf(numShards), String.valueOf(paramP), String.valueOf(paramE), goldStandardFile, outputFile, partialFile);
+				builder.inheritIO();
+				workers.add(builder.start());
+			}
+			boolean ok = true;
+			for (int shard=0;shard<numShards;shard++)
+			{
+				if(workers.get(shard).waitFor()!=0)
+				{
+					System.out.println("Shard " + shard + " of " + numShards + " failed.");
+					ok = false;
+				}
+			}
+			ok = ok && merge(partialFiles);
+			for (String partialFile : partialFiles)
+			{
+				new File(partialFile).delete();
+			}
+			workDir.delete();
+			return ok;
+		}
+		catch (IOException e)
+		{
+			System.out.println("IO error: the shard processes cannot be launched.");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		for (Process worker : workers)
+		{
+			worker.destroy();
+		}
+		return false;
+	}
+
+	/**
+	 * Method that writes the EvALL tsv report of the merged results.
+	 */
+	public void generateSingleTSVFile()
+	{
+		Evaluate.generateSingleTSVFileForOneOutput(this.outputName, this.measureName, this.result, this.goldTopics, this.outputTopics);
+	}
+
+	public EvallResult getResult()
+	{
+		return result;
+	}
+
+	public String getOutputName()
+	{
+		return outputName;
+	}
+
+	public String getMeasureName()
+	{
+		return measureName;
+	}
+}
@@ -0,0 +1,346 @@
+package es.uned.nlp.rbu;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.csvreader.CsvReader;
+
+/**
+ *
+ * <p>This source implements the metric RBU presented in the paper:<br><br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; An Axiomatic Analysis of Diversity Evaluation Metrics: Introducing the Rank-Biased Utility Metric.<br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; Enrique Amigó, Damiano Spina, Jorge Carrillo-de-Albornoz. In proceedings of SIGIR'18.</p>
+ *
+ * <p>Please, if you use this resource please cite it.</p>
+ *
+ * <p>This package is also included in the Evaluation Platform EvALL (www.evall.uned.es), along with extended features: pdf and latex reports,
+ * other diversity metrics, statistical significance test, etc.</p>
+ *
+ * <p>Index of the byte ranges of each test case in a tsv file of the diversification format, so the rows of some test cases can be read without
+ * reading the whole file. Consecutive rows of the same test case are stored as one range. The index is saved next to the file, with the extension
+ * .idx, together with the size and modification time of the file; it is built again when they do not match.</p>
+ *
+ * <p>The index assumes one row per line, that is, no quoted values with line breaks, and no tabs in the quoted values of the first column. The
+ * test case of each row is read from the first column in the same way as CsvReader does when parsing the file: whitespace is trimmed, and the
+ * text qualifiers are removed and their escaped doubles unescaped.</p>
+ *
+ * @author Jorge Carrillo-de-Albornoz
+ *
+ *  Copyright (c) 20018 - Permission is granted for use and modification of this file for research, non-commercial purposes.
+ */
+
+public class TopicOffsetIndex
+{
+	private static final String HEADER = "RBU-TOPIC-INDEX";
+	private static final String VERSION = "2";
+	private static final String EXTENSION = ".idx";
+
+	private long fileLength;
+	private long fileLastModified;
+
+	/**
+	 * Byte ranges [start, end) of each test case, in order of appearance.
+	 * */
+	private LinkedHashMap<String, List<long[]>> ranges = new LinkedHashMap<String, List<long[]>>();
+
+	private TopicOffsetIndex(long fileLength, long fileLastModified)
+	{
+		this.fileLength = fileLength;
+		this.fileLastModified = fileLastModified;
+	}
+
+	/**
+	 * Method that returns the index of a file, reading it from its .idx file if it is up to date, or building and saving it otherwise.
+	 *
+	 * @param pathFile Path of the tsv file
+	 * @return The index of the file
+	 * @throws IOException If the file cannot be read
+	 */
+	public static TopicOffsetIndex load(String pathFile) throws IOException
+	{
+		File file = new File(pathFile);
+		File indexFile = new File(pathFile + EXTENSION);
+		TopicOffsetIndex index = null;
+		if(indexFile.isFile())
+		{
+			index = read(indexFile, file.length(), file.lastModified());
+		}
+		if(index==null)
+		{
+			index = build(file);
+			try
+			{
+				index.write(indexFile);
+			}
+			catch (IOException e)
+			{
+				System.out.println("The index cannot be saved, it will be built again next time: " + indexFile);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Method that scans the file and stores the byte ranges of the rows of each test case.
+	 *
+	 * @param file The tsv file
+	 * @return The index of the file
+	 * @throws IOException If the file cannot be read
+	 */
+	public static TopicOffsetIndex build(File file) throws IOException
+	{
+		TopicOffsetIndex index = new TopicOffsetIndex(file.length(), file.lastModified());
+		try (InputStream input = new FileInputStream(file))
+		{
+			byte[] buffer = new byte[1 << 16];
+			ByteArrayBuilder firstColumn = new ByteArrayBuilder();
+			boolean inFirstColumn = true;
+			long lineStart = 0;
+			long position = 0;
+			String lastTestCase = null;
+			long[] lastRange = null;
+			int read;
+			while((read = input.read(buffer))!=-1 || position>lineStart)
+			{
+				/**
+				 * At the end of the file the last row may not end with a line break.
+				 * */
+				boolean end = read==-1;
+				for(int i=0;i<read || (end && i==0);i++)
+				{
+					int c = end ? '\n' : buffer[i];
+					if(c=='\n')
+					{
+						long lineEnd = end ? position : position+1;
+						String testCase = firstColumn.toTestCase();
+						if(lastRange!=null && testCase.equals(lastTestCase))
+						{
+							lastRange[1] = lineEnd;
+						}
+						else
+						{
+							lastRange = new long[] {lineStart, lineEnd};
+							lastTestCase = testCase;
+							List<long[]> testCaseRanges = index.ranges.get(testCase);
+							if(testCaseRanges==null)
+							{
+								testCaseRanges = new ArrayList<long[]>();
+								index.ranges.put(testCase, testCaseRanges);
+							}
+							testCaseRanges.add(lastRange);
+						}
+						lineStart = lineEnd;
+						firstColumn.reset();
+						inFirstColumn = true;
+					}
+					else if(inFirstColumn)
+					{
+						if(c=='\t')
+						{
+							inFirstColumn = false;
+						}
+						else
+						{
+							firstColumn.add(c);
+						}
+					}
+					if(!end)
+					{
+						position++;
+					}
+				}
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return The index stored in the file, or null if it is not valid or the tsv file changed
+	 */
+	private static TopicOffsetIndex read(File indexFile, long fileLength, long fileLastModified)
+	{
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8)))
+		{
+			String[] header = reader.readLine().split("\t");
+			if(header.length!=4 || !header[0].equals(HEADER) || !header[1].equals(VERSION) || Long.parseLong(header[2])!=fileLength || Long.parseLong(header[3])!=fileLastModified)
+			{
+				return null;
+			}
+			TopicOffsetIndex index = new TopicOffsetIndex(fileLength, fileLastModified);
+			String line;
+			while((line = reader.readLine())!=null)
+			{
+				int split = line.lastIndexOf('\t', line.lastIndexOf('\t')-1);
+				String testCase = line.substring(0, split);
+				String[] range = line.substring(split+1).split("\t");
+				List<long[]> testCaseRanges = index.ranges.get(testCase);
+				if(testCaseRanges==null)
+				{
+					testCaseRanges = new ArrayList<long[]>();
+					index.ranges.put(testCase, testCaseRanges);
+				}
+				testCaseRanges.add(new long[] {Long.parseLong(range[0]), Long.parseLong(range[1])});
+			}
+			return index;
+		}
+		catch (IOException | RuntimeException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the index in a temporal file that is then renamed, so a reader never sees a partial index.
+	 * */
+	private void write(File indexFile) throws IOException
+	{
+		File temporal = new File(indexFile.getPath() + ".tmp");
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(temporal.toPath()), StandardCharsets.UTF_8)))
+		{
+			writer.write(HEADER + "\t" + VERSION + "\t" + this.fileLength + "\t" + this.fileLastModified + "\n");
+			for (Map.Entry<String, List<long[]>> entry : this.ranges.entrySet())
+			{
+				for (long[] range : entry.getValue())
+				{
+					writer.write(entry.getKey() + "\t" + range[0] + "\t" + range[1] + "\n");
+				}
+			}
+		}
+		Files.move(temporal.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Method that reads the rows of some test cases, in the same order as in the file. Repeated test cases are read once, and test cases
+	 * not present in the file are ignored.
+	 *
+	 * @param pathFile Path of the tsv file of the index
+	 * @param testCases Test cases to read
+	 * @return The bytes of the rows of the test cases
+	 * @throws IOException If the file cannot be read
+	 */
+	public byte[] read(String pathFile, Collection<String> testCases) throws IOException
+	{
+		List<long[]> selected = new ArrayList<long[]>();
+		long size = 0;
+		for (String testCase : new LinkedHashSet<String>(testCases))
+		{
+			List<long[]> testCaseRanges = this.ranges.get(testCase);
+			if(testCaseRanges!=null)
+			{
+				for (long[] range : testCaseRanges)
+				{
+					selected.add(range);
+					size += range[1]-range[0];
+				}
+			}
+		}
+		Collections.sort(selected, Comparator.comparingLong((long[] range) -> range[0]));
+		File source = new File(pathFile);
+		if(source.length()!=this.fileLength || source.lastModified()!=this.fileLastModified)
+		{
+			throw new IOException("The index is out of date: " + pathFile);
+		}
+
+		byte[] bytes = new byte[(int) size];
+		int offset = 0;
+		try (RandomAccessFile file = new RandomAccessFile(pathFile, "r"))
+		{
+			for (long[] range : selected)
+			{
+				int length = (int) (range[1]-range[0]);
+				file.seek(range[0]);
+				file.readFully(bytes, offset, length);
+				offset += length;
+			}
+		}
+		return bytes;
+	}
+
+	public Set<String> getTestCases()
+	{
+		return Collections.unmodifiableSet(this.ranges.keySet());
+	}
+
+	/**
+	 * @param testCase Test case to analyze
+	 * @return The byte ranges [start, end) of the rows of the test case, or null if it is not in the file
+	 */
+	public List<long[]> getRanges(String testCase)
+	{
+		return this.ranges.get(testCase);
+	}
+
+	/**
+	 * Bytes of the first column of a row, decoded as UTF-8 as the first value of CsvReader.
+	 * */
+	private static final class ByteArrayBuilder
+	{
+		private byte[] bytes = new byte[64];
+		private int size = 0;
+
+		private void add(int b)
+		{
+			if(this.size==this.bytes.length)
+			{
+				byte[] grown = new byte[2*this.bytes.length];
+				System.arraycopy(this.bytes, 0, grown, 0, this.size);
+				this.bytes = grown;
+			}
+			this.bytes[this.size++] = (byte) b;
+		}
+
+		private void reset()
+		{
+			this.size = 0;
+		}
+
+		private String toTestCase() throws IOException
+		{
+			int end = this.size;
+			while(end>0 && (this.bytes[end-1]=='\r' || this.bytes[end-1]=='\n'))
+			{
+				end--;
+			}
+			String text = new String(this.bytes, 0, end, StandardCharsets.UTF_8);
+			if(text.isEmpty() || (text.indexOf('\"')<0 && !Character.isWhitespace(text.charAt(0)) && !Character.isWhitespace(text.charAt(text.length()-1))))
+			{
+				return text;
+			}
+
+			/**
+			 * Values with text qualifiers or whitespace at the ends are rare, they are decoded by CsvReader with the options of the parser.
+			 * */
+			CsvReader reader = new CsvReader(new StringReader(text), '\t');
+			reader.setUseTextQualifier(true);
+			reader.setTextQualifier('\"');
+			try
+			{
+				return reader.readRecord() ? reader.get(0) : "";
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package es.uned.nlp.rbu;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * <p>This source implements the metric RBU presented in the paper:<br><br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; An Axiomatic Analysis of Diversity Evaluation Metrics: Introducing the Rank-Biased Utility Metric.<br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; Enrique Amigó, Damiano Spina, Jorge Carrillo-de-Albornoz. In proceedings of SIGIR'18.</p>
+ *
+ * <p>Please, if you use this resource please cite it.</p>
+ *
+ * <p>This package is also included in the Evaluation Platform EvALL (www.evall.uned.es), along with extended features: pdf and latex reports,
+ * other diversity metrics, statistical significance test, etc.</p>
+ *
+ * <p>Results of each test case in a double array indexed by the ordinal of the test case, with a flag of the test cases evaluated. The count,
+ * mean, variance, minimum, maximum and geometric mean are updated as the results are added, replaced or removed, so they are available without
+ * scanning the results. Only the minimum and the maximum are calculated again from the results, when the value replaced or removed was one of
+ * them. Stores with the same test cases, for instance partial results of several workers, can be merged.</p>
+ *
+ * <p>A result can be NaN, for instance when an item is judged in an aspect without relevant items. It is an evaluated test case and, as in
+ * EvallResult.normalizeResult, it makes the aggregated values NaN.</p>
+ *
+ * <p>The store is not thread-safe: each thread must fill its own store and merge it later.</p>
+ *
+ * @author Jorge Carrillo-de-Albornoz
+ *
+ *  Copyright (c) 20018 - Permission is granted for use and modification of this file for research, non-commercial purposes.
+ */
+
+public class TopicResultStore
+{
+	/**
+	 * Test case of each ordinal and ordinal of each test case. They are shared by all the copies of the store.
+	 * */
+	private final List<String> testCases;
+	private final Map<String, Integer> ordinals;
+
+	private final double[] results;
+	private final boolean[] evaluated;
+
+	/**
+	 * Number of evaluated test cases and number of them with a NaN result. The rest of aggregates only include the results that are not NaN.
+	 * */
+	private int count = 0;
+	private int countNaN = 0;
+	private double mean = 0.0d;
+	private double sumSquares = 0.0d;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+	private double sumLog = 0.0d;
+	private int countNonPositive = 0;
+
+	/**
+	 * The minimum or the maximum was replaced or removed, they must be calculated again from the results.
+	 * */
+	private boolean staleExtremes = false;
+
+	/**
+	 * @param testCases Test cases of the store, the ordinal of each test case is its position in the list
+	 */
+	public TopicResultStore(List<String> testCases)
+	{
+		this.testCases = Collections.unmodifiableList(testCases);
+		HashMap<String, Integer> ordinals = new HashMap<String, Integer>();
+		for(int i=0;i<testCases.size();i++)
+		{
+			ordinals.put(testCases.get(i), i);
+		}
+		this.ordinals = Collections.unmodifiableMap(ordinals);
+		this.results = new double[testCases.size()];
+		Arrays.fill(this.results, Double.NaN);
+		this.evaluated = new boolean[testCases.size()];
+	}
+
+	private TopicResultStore(TopicResultStore store)
+	{
+		this.testCases = store.testCases;
+		this.ordinals = store.ordinals;
+		this.results = new double[this.testCases.size()];
+		Arrays.fill(this.results, Double.NaN);
+		this.evaluated = new boolean[this.testCases.size()];
+	}
+
+	/**
+	 * @return A new empty store with the same test cases, which can be merged with this one.
+	 */
+	public TopicResultStore emptyCopy()
+	{
+		return new TopicResultStore(this);
+	}
+
+	/**
+	 * @param testCase Test case to analyze
+	 * @return The ordinal of the test case, or -1 if it is not in the store
+	 */
+	public int getOrdinal(String testCase)
+	{
+		Integer ordinal = this.ordinals.get(testCase);
+		return ordinal!=null ? ordinal : -1;
+	}
+
+	public List<String> getTestCases()
+	{
+		return testCases;
+	}
+
+	public int size()
+	{
+		return results.length;
+	}
+
+	/**
+	 * @param ordinal Ordinal of the test case
+	 * @return The result of the test case, NaN if it is not evaluated (see isEvaluated) or if the result is NaN
+	 */
+	public double get(int ordinal)
+	{
+		return this.results[ordinal];
+	}
+
+	/**
+	 * @param ordinal Ordinal of the test case
+	 * @return True if the test case has a result, even if it is NaN
+	 */
+	public boolean isEvaluated(int ordinal)
+	{
+		return this.evaluated[ordinal];
+	}
+
+	/**
+	 * @param ordinal Ordinal of the test case
+	 * @param value Result of the test case, it can be NaN. A previous result of the test case is replaced.
+	 */
+	public void put(int ordinal, double value)
+	{
+		if(this.evaluated[ordinal])
+		{
+			subtract(this.results[ordinal]);
+		}
+		this.results[ordinal] = value;
+		this.evaluated[ordinal] = true;
+		add(value);
+	}
+
+	/**
+	 * @param ordinal Ordinal of the test case whose result is removed
+	 */
+	public void remove(int ordinal)
+	{
+		if(this.evaluated[ordinal])
+		{
+			subtract(this.results[ordinal]);
+		}
+		this.results[ordinal] = Double.NaN;
+		this.evaluated[ordinal] = false;
+	}
+
+	/**
+	 * Welford update of the mean and the sum of squared differences.
+	 * */
+	private void add(double value)
+	{
+		this.count++;
+		if(Double.isNaN(value))
+		{
+			this.countNaN++;
+			return;
+		}
+		int countValues = this.count-this.countNaN;
+		double delta = value-this.mean;
+		this.mean += delta/countValues;
+		this.sumSquares += delta*(value-this.mean);
+		if(!this.staleExtremes)
+		{
+			this.min = Math.min(this.min, value);
+			this.max = Math.max(this.max, value);
+		}
+		if(value>0.0d)
+		{
+			this.sumLog += Math.log(value);
+		}
+		else
+		{
+			this.countNonPositive++;
+		}
+	}
+
+	/**
+	 * Reverse of the Welford update, for a value replaced or removed.
+	 * */
+	private void subtract(double value)
+	{
+		this.count--;
+		if(Double.isNaN(value))
+		{
+			this.countNaN--;
+			return;
+		}
+		int countValues = this.count-this.countNaN;
+		if(countValues==0)
+		{
+			this.mean = 0.0d;
+			this.sumSquares = 0.0d;
+			this.min = Double.POSITIVE_INFINITY;
+			this.max = Double.NEGATIVE_INFINITY;
+			this.staleExtremes = false;
+		}
+		else
+		{
+			double previousMean = this.mean;
+			this.mean = (previousMean*(countValues+1)-value)/countValues;
+			this.sumSquares = Math.max(0.0d, this.sumSquares - (value-previousMean)*(value-this.mean));
+			if(value<=this.min || value>=this.max)
+			{
+				this.staleExtremes = true;
+			}
+		}
+		if(value>0.0d)
+		{
+			this.sumLog -= Math.log(value);
+		}
+		else
+		{
+			this.countNonPositive--;
+		}
+	}
+
+	private void refreshExtremes()
+	{
+		if(this.staleExtremes)
+		{
+			this.min = Double.POSITIVE_INFINITY;
+			this.max = Double.NEGATIVE_INFINITY;
+			for(int i=0;i<this.results.length;i++)
+			{
+				if(this.evaluated[i] && !Double.isNaN(this.results[i]))
+				{
+					this.min = Math.min(this.min, this.results[i]);
+					this.max = Math.max(this.max, this.results[i]);
+				}
+			}
+			this.staleExtremes = false;
+		}
+	}
+
+	/**
+	 * Method that adds the results of another store with the same test cases. If both stores have a result for the same test case, the
+	 * result of the other store is kept.
+	 *
+	 * @param other Store to merge, usually a partial result of another worker
+	 */
+	public void merge(TopicResultStore other)
+	{
+		if(other.ordinals!=this.ordinals && !other.testCases.equals(this.testCases))
+		{
+			throw new IllegalArgumentException("The stores to merge must have the same test cases");
+		}
+		for(int i=0;i<this.results.length;i++)
+		{
+			if(other.evaluated[i])
+			{
+				if(this.evaluated[i])
+				{
+					subtract(this.results[i]);
+				}
+				this.results[i] = other.results[i];
+				this.evaluated[i] = true;
+			}
+		}
+
+		/**
+		 * The results replaced have been subtracted, so the aggregates of both stores are combined (Chan et al.) without scanning the results.
+		 * */
+		int countValues = this.count-this.countNaN;
+		int otherCountValues = other.count-other.countNaN;
+		if(otherCountValues>0)
+		{
+			int total = countValues+otherCountValues;
+			double delta = other.mean-this.mean;
+			this.sumSquares += other.sumSquares + delta*delta*countValues*otherCountValues/total;
+			this.mean += delta*otherCountValues/total;
+			this.staleExtremes |= other.staleExtremes;
+			if(!this.staleExtremes)
+			{
+				this.min = Math.min(this.min, other.min);
+				this.max = Math.max(this.max, other.max);
+			}
+			this.sumLog += other.sumLog;
+			this.countNonPositive += other.countNonPositive;
+		}
+		this.count += other.count;
+		this.countNaN += other.countNaN;
+	}
+
+	/**
+	 * @return The number of evaluated test cases
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * @return The mean of the evaluated test cases, NaN if there are none or any of them is NaN
+	 */
+	public double getMean()
+	{
+		return count>0 && countNaN==0 ? mean : Double.NaN;
+	}
+
+	/**
+	 * @return The sample variance of the evaluated test cases, NaN if there are less than 2 or any of them is NaN
+	 */
+	public double getVariance()
+	{
+		return count>1 && countNaN==0 ? sumSquares/(count-1) : Double.NaN;
+	}
+
+	public double getMin()
+	{
+		refreshExtremes();
+		return count>0 && countNaN==0 ? min : Double.NaN;
+	}
+
+	public double getMax()
+	{
+		refreshExtremes();
+		return count>0 && countNaN==0 ? max : Double.NaN;
+	}
+
+	/**
+	 * @return The geometric mean of the evaluated test cases, NaN if there are none or any of them is NaN or not greater than 0
+	 */
+	public double getGeometricMean()
+	{
+		return count>0 && countNaN==0 && countNonPositive==0 ? Math.exp(sumLog/count) : Double.NaN;
+	}
+
+	/**
+	 * @return The evaluated test cases as an EvallResult, with the mean as aggregated result
+	 */
+	public EvallResult toEvallResult()
+	{
+		EvallResult result = new EvallResult();
+		for(int i=0;i<this.results.length;i++)
+		{
+			if(this.evaluated[i])
+			{
+				result.getResults().put(this.testCases.get(i), this.results[i]);
+			}
+		}
+		result.setAggregatedResult(getCount()>0 ? getMean() : null);
+		return result;
+	}
+}
@@ -0,0 +1,603 @@
+package es.uned.nlp.rbu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.csvreader.CsvReader;
+import com.csvreader.CsvWriter;
+
+
+/**
+ *
+ * <p>This source implements the metric RBU presented in the paper:<br><br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; An Axiomatic Analysis of Diversity Evaluation Metrics: Introducing the Rank-Biased Utility Metric.<br>
+ * 			&nbsp;&nbsp;&nbsp;&nbsp; Enrique Amigó, Damiano Spina, Jorge Carrillo-de-Albornoz. In proceedings of SIGIR'18.</p>
+ *
+ * <p>Please, if you use this resource please cite it.</p>
+ *
+ * <p>This package is also included in the Evaluation Platform EvALL (www.evall.uned.es), along with extended features: pdf and latex reports,
+ * other diversity metrics, statistical significance test, etc.</p>
+ *
+ * <p>Watch mode: the gold standard is parsed once and the system outputs that appear in a directory are evaluated as they arrive, in a bounded
+ * pool of threads. The mean of each output is appended to a leaderboard tsv file. When the queue of the pool is full, the files wait to be
+ * checked again later, so the thread that checks the files never evaluates them.</p>
+ *
+ * <p>A file is evaluated once its size and modification time do not change during the stabilization interval. Hidden files, the .idx files of
+ * TopicOffsetIndex and files ending in .tmp or .part are ignored, so files renamed into the directory once finished are evaluated after a single
+ * check. Each output is identified by its name, size and modification time, and each row of the leaderboard also keeps the number of batches of
+ * judgments added to the gold standard. After a restart, an output is only appended again if it has no row with the current number of batches.</p>
+ *
+ * <p>When the watch is built with the gold standard, files ending in .qrels are batches of new judgments in the gold standard format. They are added
+ * to the gold standard in the same way as DiversificationFormat.appendJudgments, and only the test cases with new judgments are evaluated again
+ * for all the outputs already evaluated, appending their new results to the leaderboard (the last row of each output is its current result). The
+ * batches in the directory are added again, in order of name, when the watch is restarted.</p>
+ *
+ * <p>Only the results of each test case are kept for the outputs evaluated, not their rankings. When a batch arrives, the rows of the test cases
+ * with new judgments are read again from each output with parseTopics. After a restart, the outputs that already have a row with the current
+ * number of batches are registered without parsing them, and they are evaluated completely the first time a batch arrives.</p>
+ *
+ * @author Jorge Carrillo-de-Albornoz
+ *
+ *  Copyright (c) 20018 - Permission is granted for use and modification of this file for research, non-commercial purposes.
+ */
+
+public class WatchEvaluation
+{
+	public static final String JUDGMENTS_EXTENSION = ".qrels";
+
+	private DiversificationFormat gold = null;
+	private volatile RBUEvaluator evaluator;
+	private int numJudgments = 0;
+	private Path spoolDir;
+	private File leaderboard;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private int queueSize = 64;
+	private long stabilizationMillis = 1000L;
+
+	/**
+	 * Keys of the outputs already evaluated with each number of batches of judgments, and files waiting to be stable or being evaluated.
+	 * */
+	private Set<String> processed = ConcurrentHashMap.newKeySet();
+	private Set<Path> pending = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Outputs evaluated and batches of judgments added, only when the gold standard can be updated. Evaluations share the lock and
+	 * updates of the gold standard take it exclusively.
+	 * */
+	private ConcurrentHashMap<String, RegisteredOutput> registered = new ConcurrentHashMap<String, RegisteredOutput>();
+	private Set<String> appliedJudgments = ConcurrentHashMap.newKeySet();
+	private ReentrantReadWriteLock goldLock = new ReentrantReadWriteLock();
+
+	private ThreadPoolExecutor workers;
+	private ScheduledExecutorService stabilizer;
+
+	/**
+	 * @param evaluator Evaluator with the gold standard and the parameters of RBU
+	 * @param spoolDir Directory where the system outputs are written
+	 * @param leaderboard Leaderboard tsv file where the results are appended
+	 */
+	public WatchEvaluation(RBUEvaluator evaluator, Path spoolDir, File leaderboard)
+	{
+		this.evaluator = evaluator;
+		this.spoolDir = spoolDir;
+		this.leaderboard = leaderboard;
+	}
+
+	/**
+	 * @param gold Gold Standard DiversificationFormat object, which is updated with the batches of judgments
+	 * @param evaluator Evaluator with the gold standard and the parameters of RBU
+	 * @param spoolDir Directory where the system outputs and the batches of judgments are written
+	 * @param leaderboard Leaderboard tsv file where the results are appended
+	 */
+	public WatchEvaluation(DiversificationFormat gold, RBUEvaluator evaluator, Path spoolDir, File leaderboard)
+	{
+		this(evaluator, spoolDir, leaderboard);
+		this.gold = gold;
+	}
+
+	/**
+	 * Method that evaluates the outputs already in the directory and then watches it for new outputs. It only returns when the thread is interrupted.
+	 *
+	 * @throws IOException If the directory cannot be watched
+	 */
+	public void watch() throws IOException
+	{
+		loadLeaderboard();
+		addExistingJudgments();
+		this.workers = new ThreadPoolExecutor(this.numThreads, this.numThreads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(this.queueSize));
+		this.stabilizer = Executors.newSingleThreadScheduledExecutor();
+
+		try (WatchService watchService = this.spoolDir.getFileSystem().newWatchService())
+		{
+			this.spoolDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+			/**
+			 * The directory is scanned after registering it, so no file is lost between the scan and the first event.
+			 * */
+			scan();
+			System.out.println("Watching " + this.spoolDir);
+			while(!Thread.currentThread().isInterrupted())
+			{
+				WatchKey key = watchService.take();
+				for (WatchEvent<?> event : key.pollEvents())
+				{
+					if(event.kind()==StandardWatchEventKinds.OVERFLOW)
+					{
+						scan();
+					}
+					else
+					{
+						schedule(this.spoolDir.resolve((Path) event.context()));
+					}
+				}
+				if(!key.reset())
+				{
+					System.out.println("The directory is no longer accessible: " + this.spoolDir);
+					break;
+				}
+			}
+		}
+		catch (InterruptedException | ClosedWatchServiceException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			this.stabilizer.shutdownNow();
+			this.workers.shutdown();
+		}
+	}
+
+	private void scan() throws IOException
+	{
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.spoolDir))
+		{
+			for (Path file : files)
+			{
+				schedule(file);
+			}
+		}
+	}
+
+	/**
+	 * Schedules the check of a file, unless it is ignored or it is already waiting.
+	 * */
+	private void schedule(Path file)
+	{
+		String name = file.getFileName().toString();
+		if(name.startsWith(".") || name.endsWith(".tmp") || name.endsWith(".part") || name.endsWith(".idx") || isLeaderboard(file) || !Files.isRegularFile(file))
+		{
+			return;
+		}
+		if(this.pending.add(file))
+		{
+			scheduleCheck(file);
+		}
+	}
+
+	/**
+	 * The paths are compared absolute and normalized, as the directory and the leaderboard may be given relative to different folders.
+	 * */
+	private boolean isLeaderboard(Path file)
+	{
+		return file.toAbsolutePath().normalize().equals(this.leaderboard.toPath().toAbsolutePath().normalize());
+	}
+
+	private void scheduleCheck(Path file)
+	{
+		File run = file.toFile();
+		long size = run.length();
+		long lastModified = run.lastModified();
+		this.stabilizer.schedule(() -> checkStable(file, size, lastModified), this.stabilizationMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * If the file did not change during the stabilization interval it is evaluated, otherwise it is checked again later.
+	 * */
+	private void checkStable(Path file, long size, long lastModified)
+	{
+		File run = file.toFile();
+		if(!run.isFile())
+		{
+			this.pending.remove(file);
+			return;
+		}
+		if(run.length()!=size || run.lastModified()!=lastModified)
+		{
+			scheduleCheck(file);
+			return;
+		}
+		String key = getKey(run.getName(), size, lastModified);
+		if(run.getName().endsWith(JUDGMENTS_EXTENSION))
+		{
+			if(size==0 || this.gold==null || this.appliedJudgments.contains(key))
+			{
+				this.pending.remove(file);
+				return;
+			}
+			submit(file, size, lastModified, () -> addJudgments(file, key));
+			return;
+		}
+
+		/**
+		 * Outputs already in the leaderboard are only registered, without evaluating them, when the gold standard can be updated.
+		 * */
+		RegisteredOutput current = this.registered.get(run.getName());
+		if(size==0 || (current!=null && current.key.equals(key)) || (this.gold==null && this.processed.contains(getRowKey(key, this.numJudgments))))
+		{
+			this.pending.remove(file);
+			return;
+		}
+		submit(file, size, lastModified, () -> evaluate(file, key, size, lastModified));
+	}
+
+	/**
+	 * Submits the evaluation of a stable file to the workers. If the queue is full the check of the file is scheduled again, which keeps
+	 * the stabilizer thread free to check the other files.
+	 * */
+	private void submit(Path file, long size, long lastModified, Runnable task)
+	{
+		try
+		{
+			this.workers.execute(task);
+		}
+		catch (RejectedExecutionException e)
+		{
+			if(this.workers.isShutdown())
+			{
+				this.pending.remove(file);
+				return;
+			}
+			this.stabilizer.schedule(() -> checkStable(file, size, lastModified), this.stabilizationMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void evaluate(Path file, String key, long size, long lastModified)
+	{
+		boolean changed = false;
+		this.goldLock.readLock().lock();
+		String rowKey = getRowKey(key, this.numJudgments);
+		try
+		{
+			/**
+			 * The number of batches does not change while the lock is held, so the row is appended if the leaderboard has no result of the
+			 * output with the current judgments, for instance when a batch was added while the watch was stopped.
+			 * */
+			boolean append = !this.processed.contains(rowKey);
+			File run = file.toFile();
+			if(!append && this.gold!=null)
+			{
+				/**
+				 * The output is already in the leaderboard with the current judgments. It is registered without parsing it, and it is only
+				 * evaluated when a batch of judgments arrives.
+				 * */
+				this.registered.put(run.getName(), new RegisteredOutput(run.getName(), key, size, lastModified, file, null));
+				return;
+			}
+			TopicResultStore result = evaluateOutput(file);
+			changed = !key.equals(getKey(run.getName(), run.length(), run.lastModified()));
+			if(!changed)
+			{
+				RegisteredOutput registeredOutput = new RegisteredOutput(run.getName(), key, size, lastModified, file, result);
+				if(this.gold!=null)
+				{
+					this.registered.put(run.getName(), registeredOutput);
+				}
+				if(append)
+				{
+					appendLeaderboard(registeredOutput);
+				}
+			}
+		}
+		catch (RuntimeException e)
+		{
+			System.out.println("Error evaluating " + file + ": " + e);
+		}
+		finally
+		{
+			this.goldLock.readLock().unlock();
+			/**
+			 * Failed outputs are not retried until the file changes or the watch is restarted.
+			 * */
+			if(!changed)
+			{
+				this.processed.add(rowKey);
+			}
+			this.pending.remove(file);
+		}
+		/**
+		 * The file changed while it was evaluated. The new version is checked again.
+		 * */
+		if(changed)
+		{
+			schedule(file);
+		}
+	}
+
+	/**
+	 * Adds a batch of judgments to the gold standard and evaluates again the test cases with new judgments of all the registered outputs.
+	 * */
+	private void addJudgments(Path file, String key)
+	{
+		this.goldLock.writeLock().lock();
+		try
+		{
+			Set<String> updated = addJudgments(file);
+			this.appliedJudgments.add(key);
+			for (RegisteredOutput output : this.registered.values())
+			{
+				File run = output.path.toFile();
+				if(!output.key.equals(getKey(run.getName(), run.length(), run.lastModified())))
+				{
+					/**
+					 * The output changed or was removed. A new version is evaluated when the watch sees it.
+					 * */
+					this.registered.remove(output.name, output);
+					continue;
+				}
+				if(output.result==null)
+				{
+					output.result = evaluateOutput(output.path);
+				}
+				else
+				{
+					try
+					{
+						evaluateAgain(output, updated);
+					}
+					catch (IOException e)
+					{
+						System.out.println("IO error: the test cases of " + run + " cannot be read, it is evaluated again: " + e.getMessage());
+						output.result = evaluateOutput(output.path);
+					}
+				}
+				appendLeaderboard(output);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			System.out.println("Error adding the judgments " + file + ": " + e);
+		}
+		finally
+		{
+			this.goldLock.writeLock().unlock();
+			this.pending.remove(file);
+		}
+	}
+
+	private Set<String> addJudgments(Path file)
+	{
+		Set<String> updated = this.gold.appendJudgments(file.toString());
+		this.evaluator = this.evaluator.withUpdatedTestCases(this.gold, updated);
+		this.numJudgments++;
+		System.out.println("Added judgments " + file.getFileName() + " for " + updated.size() + " test cases");
+		return updated;
+	}
+
+	private TopicResultStore evaluateOutput(Path file)
+	{
+		DiversificationFormat output = new DiversificationFormat();
+		output.parseFile(false, file.toString());
+		TopicResultStore result = this.evaluator.newResultStore();
+		this.evaluator.evaluate(output, result);
+		return result;
+	}
+
+	/**
+	 * Evaluates again the test cases with new judgments of an output, reading only their rows. The test cases that are not in the output
+	 * are evaluated with an empty ranking, as when the whole output is evaluated.
+	 * */
+	private void evaluateAgain(RegisteredOutput output, Set<String> updated) throws IOException
+	{
+		TopicResultStore result = output.result;
+		if(result.size()!=this.evaluator.getTestCases().size())
+		{
+			/**
+			 * New test cases are added at the end, the ordinals of the existing ones do not change.
+			 * */
+			result = this.evaluator.newResultStore();
+			for(int i=0;i<output.result.size();i++)
+			{
+				if(output.result.isEvaluated(i))
+				{
+					result.put(i, output.result.get(i));
+				}
+			}
+			output.result = result;
+		}
+		Set<String> present = TopicOffsetIndex.load(output.path.toString()).getTestCases();
+		List<String> testCases = new ArrayList<String>();
+		for (String testCase : updated)
+		{
+			if(present.contains(testCase))
+			{
+				testCases.add(testCase);
+			}
+		}
+		HashMap<String, ArrayList<String>> rankings = new HashMap<String, ArrayList<String>>();
+		if(!testCases.isEmpty())
+		{
+			DiversificationFormat partial = new DiversificationFormat();
+			partial.parseTopics(false, output.path.toString(), testCases);
+			rankings = partial.getRankingOfTopics();
+		}
+		for (String testCase : updated)
+		{
+			result.put(result.getOrdinal(testCase), this.evaluator.evaluateTestCase(testCase, rankings.get(testCase)));
+		}
+	}
+
+	/**
+	 * Adds the batches of judgments already in the directory, in order of name, before evaluating any output.
+	 * */
+	private void addExistingJudgments() throws IOException
+	{
+		if(this.gold==null)
+		{
+			return;
+		}
+		List<Path> judgments = new ArrayList<Path>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.spoolDir, "*" + JUDGMENTS_EXTENSION))
+		{
+			for (Path file : files)
+			{
+				judgments.add(file);
+			}
+		}
+		Collections.sort(judgments);
+		for (Path file : judgments)
+		{
+			File batch = file.toFile();
+			addJudgments(file);
+			this.appliedJudgments.add(getKey(batch.getName(), batch.length(), batch.lastModified()));
+		}
+	}
+
+	private synchronized void appendLeaderboard(RegisteredOutput output)
+	{
+		try
+		{
+			boolean exists = this.leaderboard.exists() && this.leaderboard.length()>0;
+			CsvWriter csvOutput = new CsvWriter(new FileOutputStream(this.leaderboard, true), '\t', Charset.forName(StandardCharsets.UTF_8.displayName()));
+			csvOutput.setTextQualifier('\"');
+			csvOutput.setUseTextQualifier(true);
+			csvOutput.setForceQualifier(true);
+			if(!exists)
+			{
+				csvOutput.writeRecord(new String[] {"System Output", "Size", "Modified", "Test Cases", this.evaluator.getName(), "Judgment Batches"});
+			}
+			double mean = output.result.getMean();
+			csvOutput.writeRecord(new String[] {output.name, String.valueOf(output.size), String.valueOf(output.lastModified),
+					String.valueOf(output.result.getCount()), !Double.isNaN(mean) ? String.format("%.4f", mean) : "-", String.valueOf(this.numJudgments)});
+			csvOutput.close();
+			this.processed.add(getRowKey(output.key, this.numJudgments));
+			System.out.println("Evaluated " + output.name + ": " + mean);
+		}
+		catch (IOException e)
+		{
+			System.out.println("IO error: the leaderboard cannot be written " + this.leaderboard);
+		}
+	}
+
+	/**
+	 * Reads the outputs already in the leaderboard and the number of batches of judgments of each row, so they are not appended again.
+	 * */
+	private void loadLeaderboard()
+	{
+		if(!this.leaderboard.exists())
+		{
+			return;
+		}
+		try
+		{
+			CsvReader reader = new CsvReader(new InputStreamReader(new FileInputStream(this.leaderboard), Charset.forName(StandardCharsets.UTF_8.displayName())), '\t');
+			reader.setUseTextQualifier(true);
+			reader.setTextQualifier('\"');
+			try
+			{
+				reader.readRecord();
+				while(reader.readRecord())
+				{
+					String[] record = reader.getValues();
+					if(record.length>=3)
+					{
+						int batches = record.length>=6 ? Integer.parseInt(record[5]) : 0;
+						this.processed.add(getRowKey(getKey(record[0], Long.parseLong(record[1]), Long.parseLong(record[2])), batches));
+					}
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (FileNotFoundException e)
+		{
+			System.out.println("File not found: " + this.leaderboard);
+		}
+		catch (IOException | NumberFormatException e)
+		{
+			System.out.println("Format error: leaderboard file not well formed " + this.leaderboard);
+		}
+	}
+
+	private static String getKey(String name, long size, long lastModified)
+	{
+		return name + "\t" + size + "\t" + lastModified;
+	}
+
+	private static String getRowKey(String key, int numJudgments)
+	{
+		return key + "\t" + numJudgments;
+	}
+
+	public void setNumThreads(int numThreads)
+	{
+		this.numThreads = numThreads;
+	}
+
+	public void setQueueSize(int queueSize)
+	{
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * @param stabilizationMillis Time a file must not change before it is evaluated
+	 */
+	public void setStabilizationMillis(long stabilizationMillis)
+	{
+		this.stabilizationMillis = stabilizationMillis;
+	}
+
+	/**
+	 * System output already evaluated, with its path and its results. The results are null if the output was registered from the leaderboard
+	 * and it has not been evaluated yet.
+	 * */
+	private static final class RegisteredOutput
+	{
+		private final String name;
+		private final String key;
+		private final long size;
+		private final long lastModified;
+		private final Path path;
+		private TopicResultStore result;
+
+		private RegisteredOutput(String name, String key, long size, long lastModified, Path path, TopicResultStore result)
+		{
+			this.name = name;
+			this.key = key;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.path = path;
+			this.result = result;
+		}
+	}
+}